@@ -0,0 +1,24 @@
+package com.example.lukassos.runtime_permission;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import com.example.lukassos.runtime_permission.core.PermissionChecker;
+
+import static android.support.v4.content.PermissionChecker.checkSelfPermission;
+
+/**
+ * Asks PackageManager about granted permissions
+ */
+class AndroidPermissionChecker implements PermissionChecker {
+    private final Context context;
+
+    AndroidPermissionChecker(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public boolean isGranted(String permission) {
+        return (checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED);
+    }
+}
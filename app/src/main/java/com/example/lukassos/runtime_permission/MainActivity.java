@@ -10,7 +10,11 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.FrameLayout;
 
-import java.util.ArrayList;
+import com.example.lukassos.runtime_permission.core.NeedsPermissions;
+import com.example.lukassos.runtime_permission.core.PermissionSet;
+import com.example.lukassos.runtime_permission.core.PermissionStatus;
+
+import java.util.List;
 
 import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
 import static android.Manifest.permission.ACCESS_FINE_LOCATION;
@@ -21,15 +25,23 @@ import static android.Manifest.permission.RECORD_AUDIO;
 import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
 
 public class MainActivity extends Activity implements OnClickListener, RuntimePermissionsUtils.Callback {
-    private final static int COARSE_LOCATION_RESULT = 100;
-    private final static int FINE_LOCATION_RESULT = 101;
-    private final static int CALL_PHONE_RESULT = 102;
-    private final static int CAMERA_RESULT = 103;
-    private final static int READ_CONTACTS_RESULT = 104;
-    private final static int WRITE_EXTERNAL_RESULT = 105;
-    private final static int RECORD_AUDIO_RESULT = 106;
-    private final static int ALL_PERMISSIONS_RESULT = 107;
-
+    @NeedsPermissions(ACCESS_FINE_LOCATION)
+    static final int LOCATION_FINE = R.id.btnLocationFine;
+    @NeedsPermissions(ACCESS_COARSE_LOCATION)
+    static final int LOCATION_COARSE = R.id.btnLocationCoarse;
+    @NeedsPermissions(CAMERA)
+    static final int CAMERA_FEATURE = R.id.btnCamera;
+    @NeedsPermissions(READ_CONTACTS)
+    static final int CONTACTS = R.id.btnContacts;
+    @NeedsPermissions(RECORD_AUDIO)
+    static final int MICROPHONE = R.id.btnMicrophone;
+    @NeedsPermissions(CALL_PHONE)
+    static final int PHONE = R.id.btnPhone;
+    @NeedsPermissions(WRITE_EXTERNAL_STORAGE)
+    static final int STORAGE_WRITE = R.id.btnStorageWrite;
+    @NeedsPermissions({ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION, CAMERA, READ_CONTACTS, RECORD_AUDIO,
+            CALL_PHONE, WRITE_EXTERNAL_STORAGE})
+    static final int REQUEST_ALL = R.id.btnRequestAll;
 
     private SharedPreferences sharedPreferences;
     private Button btnLocationFine, btnLocationCoarse,
@@ -84,40 +96,10 @@ public class MainActivity extends Activity implements OnClickListener, RuntimePe
     @Override
     public void onClick(View v) {
         permissionSuccess.setVisibility(View.GONE);
-        ArrayList<String> permissions = new ArrayList<>();
-        switch(v.getId()){
-            case R.id.btnLocationFine:
-                permissions.add(ACCESS_FINE_LOCATION);
-                break;
-            case R.id.btnLocationCoarse:
-                permissions.add(ACCESS_COARSE_LOCATION);
-                break;
-            case R.id.btnCamera:
-                permissions.add(CAMERA);
-                break;
-            case R.id.btnContacts:
-                permissions.add(READ_CONTACTS);
-                break;
-            case R.id.btnMicrophone:
-                permissions.add(RECORD_AUDIO);
-                break;
-            case R.id.btnPhone:
-                permissions.add(CALL_PHONE);
-                break;
-            case R.id.btnStorageWrite:
-                permissions.add(WRITE_EXTERNAL_STORAGE);
-                break;
-            case R.id.btnRequestAll:
-                permissions.add(ACCESS_FINE_LOCATION);
-                permissions.add(ACCESS_COARSE_LOCATION);
-                permissions.add(CAMERA);
-                permissions.add(READ_CONTACTS);
-                permissions.add(RECORD_AUDIO);
-                permissions.add(CALL_PHONE);
-                permissions.add(WRITE_EXTERNAL_STORAGE);
-                break;
-        }
-
+        // tables generated from @NeedsPermissions constants below
+        PermissionSet permissions = MainActivityPermissions.set(v.getId());
+        if (permissions == null)
+            return;
 
         RuntimePermissionsUtils.request(this, permissions, this);
     }
@@ -135,12 +117,12 @@ public class MainActivity extends Activity implements OnClickListener, RuntimePe
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
 
-        RuntimePermissionsUtils.verify(this, requestCode, this);
+        RuntimePermissionsUtils.verify(this, requestCode, permissions, grantResults, this);
 
     }
 
     @Override
-    public void onPermissionGranted(RuntimePermissionsUtils.PermissionStatus status) {
+    public void onPermissionGranted(PermissionStatus status) {
         // show success message
         permissionSuccess.setVisibility(View.VISIBLE);
         // hide after time period pass
@@ -150,22 +132,20 @@ public class MainActivity extends Activity implements OnClickListener, RuntimePe
     }
 
     @Override
-    public void onPermissionDenied(RuntimePermissionsUtils.PermissionStatus status) {
-        makePostRequestSnackFromDenied(this, status.denied);
+    public void onPermissionDenied(PermissionStatus status) {
+        makePostRequestSnackFromDenied(this, status.getDenied());
     }
 
     /**
      * a method that will centralize the showing of a Snackbar
      */
-    private void makePostRequestSnackFromDenied(final Activity context, final ArrayList<String> permissionsRejected) {
+    private void makePostRequestSnackFromDenied(final Activity context, final List<String> permissionsRejected) {
         Snackbar
                 .make(coordinatorLayoutView, String.valueOf(permissionsRejected.size()) + " permission(s) were rejected", Snackbar.LENGTH_LONG)
                 .setAction("Allow to Ask Again", new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        for (String perm : permissionsRejected) {
-                            RuntimePermissionsUtils.clearMarkAsAsked(context, perm);
-                        }
+                        RuntimePermissionsUtils.clearMarkAsAsked(context, permissionsRejected);
                     }
                 })
                 .show();
@@ -0,0 +1,146 @@
+package com.example.lukassos.runtime_permission;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.lukassos.runtime_permission.core.PermissionStatus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Permission pre-check running on a small background pool, see
+ * {@link RuntimePermissionsUtils#checkAsync(android.content.Context, ArrayList, Listener)}.
+ * <p>
+ * The result is delivered to {@link Listener} on the main thread, unless the check was cancelled.
+ * Checks started for an Activity are cancelled when that Activity is destroyed.
+ */
+public class PermissionCheck extends FutureTask<PermissionStatus> {
+    private static final int POOL_SIZE = 2;
+    private static final int QUEUE_SIZE = 64;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RuntimePermissionsCheck-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    // checks bound to the lifecycle of some Activity
+    private static final WeakHashMap<Activity, ArrayList<PermissionCheck>> BOUND = new WeakHashMap<>();
+
+    private static Handler mainHandler;
+
+    public interface Listener {
+        /**
+         * Called on the main thread
+         *
+         * @param status granted and not granted permissions of the check
+         */
+        void onChecked(PermissionStatus status);
+    }
+
+    private volatile Listener listener;
+
+    PermissionCheck(Callable<PermissionStatus> check, Listener listener) {
+        super(check);
+        this.listener = listener;
+    }
+
+    /**
+     * Queues the check on the background pool
+     *
+     * @param owner Activity whose destruction cancels the check, may be null
+     * @throws java.util.concurrent.RejectedExecutionException when too many checks are already waiting,
+     *                                                          the check is not started nor bound to owner then
+     */
+    void start(Activity owner) {
+        // bind only once queued, a rejected check must not stay in BOUND until owner is destroyed
+        EXECUTOR.execute(this);
+        if (owner != null) {
+            synchronized (BOUND) {
+                ArrayList<PermissionCheck> checks = BOUND.get(owner);
+                if (checks == null) {
+                    checks = new ArrayList<>();
+                    BOUND.put(owner, checks);
+                }
+                // forget those already finished, so the list does not grow
+                for (Iterator<PermissionCheck> it = checks.iterator(); it.hasNext(); ) {
+                    if (it.next().isDone())
+                        it.remove();
+                }
+                checks.add(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // do not hold the listener (and whatever Activity it refers to) any longer
+        listener = null;
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled() || listener == null)
+            return;
+        mainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Listener target = listener;
+                if (target == null || isCancelled())
+                    return;
+                listener = null;
+                try {
+                    target.onChecked(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // let it crash the same way as if the check ran on this thread
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels all the checks started for activity
+     *
+     * @param activity
+     */
+    static void cancelAll(Activity activity) {
+        ArrayList<PermissionCheck> checks;
+        synchronized (BOUND) {
+            checks = BOUND.remove(activity);
+        }
+        if (checks == null)
+            return;
+        for (PermissionCheck check : checks) {
+            check.cancel(true);
+        }
+    }
+
+    private static synchronized Handler mainHandler() {
+        if (mainHandler == null)
+            mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.lukassos.runtime_permission;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import com.example.lukassos.runtime_permission.core.PermissionEngine;
+import com.example.lukassos.runtime_permission.core.PermissionStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps requests of an Activity recreated by a configuration change (rotation, multi-window) while
+ * the system dialog is showing, like a retained fragment does.
+ * <p>
+ * The Activity saves a token of its holder in onSaveInstanceState. When it is destroyed for the change,
+ * its requests and callback are handed over to the holder, so the engine does not refer to the dead
+ * instance anymore. Results arriving meanwhile are kept as computed. The recreated instance finds the holder
+ * by the token in onCreate and takes the requests back. It gets the kept results without checking anything
+ * in onStart, when its views are set up. Only the Activity itself as the callback is taken over, other callbacks
+ * stay as they are.
+ */
+final class RequestHolder implements RuntimePermissionsUtils.Callback {
+    private static final String KEY = "com.example.lukassos.runtime_permission.RequestHolder";
+
+    private static int lastToken;
+    // holders of saved Activities, until they are destroyed or saved again
+    private static final WeakHashMap<Activity, RequestHolder> SAVED = new WeakHashMap<>();
+    // holders of destroyed Activities, until they are recreated
+    private static final HashMap<Integer, RequestHolder> HELD = new HashMap<>();
+    // holders taken back by recreated Activities, until they are started
+    private static final WeakHashMap<Activity, RequestHolder> RESTORED = new WeakHashMap<>();
+
+    private final int token;
+    // results delivered while no Activity was there, in order
+    private final ArrayList<PermissionStatus> results = new ArrayList<>();
+    private final ArrayList<Boolean> granted = new ArrayList<>();
+
+    private RequestHolder(int token) {
+        this.token = token;
+    }
+
+    @Override
+    public void onPermissionGranted(PermissionStatus status) {
+        results.add(status);
+        granted.add(true);
+    }
+
+    @Override
+    public void onPermissionDenied(PermissionStatus status) {
+        results.add(status);
+        granted.add(false);
+    }
+
+    /**
+     * Called from onActivitySaveInstanceState
+     *
+     * @param engine
+     * @param activity
+     * @param outState
+     */
+    static synchronized void save(PermissionEngine<RuntimePermissionsUtils.Callback> engine, Activity activity,
+                                  Bundle outState) {
+        if (!engine.hasRequests(activity)) {
+            SAVED.remove(activity);
+            return;
+        }
+        RequestHolder holder = new RequestHolder(++lastToken);
+        SAVED.put(activity, holder);
+        outState.putInt(KEY, holder.token);
+    }
+
+    /**
+     * Called from onActivityDestroyed
+     *
+     * @param engine
+     * @param activity
+     */
+    static synchronized void hold(PermissionEngine<RuntimePermissionsUtils.Callback> engine, Activity activity) {
+        RequestHolder holder = SAVED.remove(activity);
+        if (holder == null || !activity.isChangingConfigurations())
+            return;
+        if (engine.handOver(activity, holder, callbackOf(activity), holder))
+            HELD.put(holder.token, holder);
+    }
+
+    /**
+     * Called from onActivityCreated, that is from super.onCreate() - the kept results wait for
+     * {@link #deliver(Activity)}, the views of activity are not there yet
+     *
+     * @param engine
+     * @param activity
+     * @param savedInstanceState may be null
+     */
+    static synchronized void restore(PermissionEngine<RuntimePermissionsUtils.Callback> engine, Activity activity,
+                                     Bundle savedInstanceState) {
+        if (savedInstanceState == null || !savedInstanceState.containsKey(KEY))
+            return;
+        RequestHolder holder = HELD.remove(savedInstanceState.getInt(KEY));
+        if (holder == null)
+            return;
+        RuntimePermissionsUtils.Callback callback = callbackOf(activity);
+        engine.handOver(holder, activity, holder, callback);
+        if (callback != null && !holder.results.isEmpty())
+            RESTORED.put(activity, holder);
+    }
+
+    /**
+     * Called from onActivityStarted, before any newer result can arrive
+     *
+     * @param activity
+     */
+    static void deliver(Activity activity) {
+        RequestHolder holder;
+        synchronized (RequestHolder.class) {
+            if (RESTORED.isEmpty())
+                return;
+            holder = RESTORED.remove(activity);
+        }
+        if (holder == null)
+            return;
+        RuntimePermissionsUtils.Callback callback = callbackOf(activity);
+        // outside the lock, callbacks may request again
+        for (int i = 0; i < holder.results.size(); i++) {
+            if (holder.granted.get(i))
+                callback.onPermissionGranted(holder.results.get(i));
+            else
+                callback.onPermissionDenied(holder.results.get(i));
+        }
+    }
+
+    private static RuntimePermissionsUtils.Callback callbackOf(Activity activity) {
+        return activity instanceof RuntimePermissionsUtils.Callback ? (RuntimePermissionsUtils.Callback) activity : null;
+    }
+}
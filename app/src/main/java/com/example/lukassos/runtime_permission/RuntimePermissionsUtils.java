@@ -2,174 +2,235 @@ package com.example.lukassos.runtime_permission;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.preference.PreferenceManager;
-import android.support.annotation.NonNull;
-import android.support.design.widget.Snackbar;
-import android.util.ArraySet;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.StrictMode;
 import android.util.Log;
-import android.view.View;
 
+import com.example.lukassos.runtime_permission.core.AskPolicy;
+import com.example.lukassos.runtime_permission.core.FeatureIndex;
+import com.example.lukassos.runtime_permission.core.FeatureStates;
+import com.example.lukassos.runtime_permission.core.FileStateStore;
+import com.example.lukassos.runtime_permission.core.ManifestIndex;
+import com.example.lukassos.runtime_permission.core.MetricsSink;
+import com.example.lukassos.runtime_permission.core.PendingRequest;
+import com.example.lukassos.runtime_permission.core.PermissionChecker;
+import com.example.lukassos.runtime_permission.core.PermissionEngine;
+import com.example.lukassos.runtime_permission.core.PermissionGuard;
+import com.example.lukassos.runtime_permission.core.PermissionJournal;
+import com.example.lukassos.runtime_permission.core.PermissionListener;
+import com.example.lukassos.runtime_permission.core.PermissionSet;
+import com.example.lukassos.runtime_permission.core.PermissionStateStore;
+import com.example.lukassos.runtime_permission.core.PermissionStatus;
+import com.example.lukassos.runtime_permission.core.RequestPlan;
+import com.example.lukassos.runtime_permission.core.SharedFileStateStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-
-import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
-import static android.Manifest.permission.ACCESS_FINE_LOCATION;
-import static android.Manifest.permission.CALL_PHONE;
-import static android.Manifest.permission.CAMERA;
-import static android.Manifest.permission.READ_CONTACTS;
-import static android.Manifest.permission.RECORD_AUDIO;
-import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
-import static android.support.v4.app.ActivityCompat.requestPermissions;
-import static android.support.v4.content.PermissionChecker.checkSelfPermission;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by lukassos on 1/6/2016. All rights reserved.
  */
 public class RuntimePermissionsUtils {
     private static final String TAG = "RuntimePermissionsUtils";
-    private static final String REQUESTED_PERMISSIONS = "requested_permissions";
+    private static final String STATE_FILE = "runtime_permissions.state";
+    private static final String SHARED_STATE_FILE = "runtime_permissions.shared";
+    private static final String JOURNAL_FILE = "runtime_permissions.journal";
+
+    private static boolean lifecycleWatched;
+    private static boolean sharedAcrossProcesses;
+    private static PermissionEngine<Callback> engine;
+    // open once prewarm finished, null when prewarm was not called
+    private static CountDownLatch prewarming;
+
+    public interface Callback {
+        void onPermissionGranted(PermissionStatus status);
+
+        void onPermissionDenied(PermissionStatus status);
+
+    }
 
-    private final static int COARSE_LOCATION_RESULT = 101;
-    private final static int FINE_LOCATION_RESULT = 201;
-    private final static int CALL_PHONE_RESULT = 301;
-    private final static int CAMERA_RESULT = 401;
-    private final static int READ_CONTACTS_RESULT = 501;
-    private final static int WRITE_EXTERNAL_RESULT = 601;
-    private final static int RECORD_AUDIO_RESULT = 701;
-    // TODO : add other result codes - increment by 100
 
     /**
-     * Model Class for storing info of requesting permissions process
+     * This method allows developer to easily request permission/s
+     * anywhere within some Activity Context. While some request of the Activity waits for the user,
+     * the next one is queued and shown after it, merged with all the others requested meanwhile.
+     *
+     * @param activityContext
+     * @param permissions
      */
-    public static class PermissionStatus {
-        ArrayList<String> requested;
-        ArrayList<String> granted;
-        ArrayList<String> denied;
-
-        public PermissionStatus(
-                ArrayList<String> granted,
-                ArrayList<String> requested,
-                ArrayList<String> denied) {
-            this.granted = granted;
-            this.requested = requested;
-            this.denied = denied;
+    public static void request(Activity activityContext, ArrayList<String> permissions, Callback callback) {
+        watchLifecycle(activityContext);
+        PermissionEngine<Callback> engine = engine(activityContext);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M && engine.manifest() != null) {
+            // granted at install time, or never
+            notify(callback, engine.installTimeStatus(permissions));
+            return;
         }
 
-        public PermissionStatus() {
-            this.granted = new ArrayList<>();
-            this.requested = new ArrayList<>();
-            this.denied = new ArrayList<>();
+        //but have we already asked for them?
+        //filter out the permissions we have already accepted, the ones we asked for before but were not granted
+        //and plan the rest by permission groups
+        TraceSections.begin(TraceSections.REQUEST);
+        try {
+            request(activityContext, engine, engine.plan(activityContext, permissions), callback);
+        } finally {
+            TraceSections.end();
         }
+    }
 
-
-        public void addGranted(String perm) {
-            if (!granted.contains(perm))
-                this.granted.add(perm);
-            if (!requested.contains(perm))
-                this.requested.add(perm);
-            if (denied.contains(perm))
-                this.denied.remove(perm);
+    /**
+     * Same as {@link #request(Activity, ArrayList, Callback)} for a set compiled once, e.g. generated
+     * from {@link com.example.lukassos.runtime_permission.core.NeedsPermissions}
+     *
+     * @param activityContext
+     * @param permissions
+     * @param callback
+     */
+    public static void request(Activity activityContext, PermissionSet permissions, Callback callback) {
+        watchLifecycle(activityContext);
+        PermissionEngine<Callback> engine = engine(activityContext);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M && engine.manifest() != null) {
+            notify(callback, engine.installTimeStatus(permissions));
+            return;
         }
-
-        public void addGranted(List<String> perms) {
-            for (String perm : perms) {
-                this.addGranted(perm);
-            }
+        TraceSections.begin(TraceSections.REQUEST);
+        try {
+            request(activityContext, engine, engine.plan(activityContext, permissions), callback);
+        } finally {
+            TraceSections.end();
         }
+    }
 
-        public void addDenied(String perm) {
-            if (!denied.contains(perm))
-                this.denied.add(perm);
-            if (!requested.contains(perm))
-                this.requested.add(perm);
-            if (granted.contains(perm))
-                this.granted.remove(perm);
+    @SuppressLint("NewApi") // we can suppress it this time : canMakeSmores() tests for api level
+    private static void request(Activity activityContext, PermissionEngine<Callback> engine, RequestPlan plan,
+                                Callback callback) {
+        List<String> permissionsToRequest = plan.getToRequest();
+        if (!plan.getUndeclared().isEmpty()) {
+            // let developer know of missing something in Manifesto, once
+            String diagnostic = engine.manifest().diagnose(plan.getUndeclared());
+            if (diagnostic != null)
+                Log.e(TAG, "request: " + diagnostic);
         }
 
-        public void addDenied(List<String> perms) {
-            for (String perm : perms) {
-                this.addDenied(perm);
+        //ask for those unasked first, then verify if we asked for some previously rejected
+        if (plan.needsRequest()) {//we need to ask for permissions
+            // ask only if this dev is running on Marshmallow
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // only one dialog at once, the others wait for verify
+                PendingRequest<Callback> pending;
+                TraceSections.begin(TraceSections.PERSIST);
+                try {
+                    pending = engine.submit(activityContext, plan, callback);
+                } finally {
+                    TraceSections.end();
+                }
+                if (pending != null)
+                    show(activityContext, pending);
+            } else {
+                // older APIs without manifest index, let developer know of missing something in Manifesto
+                Log.e(TAG, "request: Permissions requested are missing in manifest! Add following : " + permissionsToRequest);
+                engine.markAsAsked(permissionsToRequest);
             }
+        } else {
+            // all of them are either granted or previously rejected
+            //we have none to request but maybe some previously rejected..tell the user.
+            //It may be better to show a dialog here in a prod application
+            notify(callback, plan.toStatus());
         }
+    }
 
-        public void removeFromAll(String perm) {
-            if (denied.contains(perm))
-                this.denied.remove(perm);
-            if (requested.contains(perm))
-                this.requested.remove(perm);
-            if (granted.contains(perm))
-                this.granted.remove(perm);
-        }
+    @SuppressLint("NewApi") // called only on Marshmallow
+    private static void show(Activity activity, PendingRequest<Callback> pending) {
+        // all these are already marked as asked and saved as the last asked for
+        activity.requestPermissions(pending.getPermissions(), pending.getRequestCode());
     }
 
-    public interface Callback {
-        void onPermissionGranted(PermissionStatus status);
 
-        void onPermissionDenied(PermissionStatus status);
+    /**
+     * Makes a guard for checks repeated in hot paths, e.g. every camera preview frame. Build it once,
+     * then {@link PermissionGuard#allGranted()} reads cached states without any allocation. The cache is
+     * invalidated on every Activity resume, the first check after it asks PackageManager again.
+     *
+     * @param context
+     * @param permissions
+     * @return
+     */
+    public static PermissionGuard guard(Context context, String... permissions) {
+        return engine(context).guard(PermissionSet.of(permissions));
+    }
 
+    /**
+     * Decides visibility of all the features of a screen at once, e.g. of a settings screen. Every permission
+     * the features need is checked once, cached states are not checked at all. Build the index once, e.g. as a
+     * static field, nothing is requested.
+     *
+     * @param context
+     * @param features
+     * @return available features and those blocked by a permission the user was asked for before
+     */
+    public static FeatureStates evaluate(Context context, FeatureIndex features) {
+        return engine(context).evaluate(features);
     }
 
+    /**
+     * Checks permissions on a background thread - nothing is requested, granted permissions end up
+     * in status.granted, all the others in status.denied. Also warms up the permission state cache,
+     * so it is a good idea to call it early (e.g. during splash) for permissions requested later.
+     *
+     * @param context
+     * @param permissions
+     * @param listener    gets the result on the main thread
+     * @return handle of the check, can be cancelled or waited for
+     * @throws java.util.concurrent.RejectedExecutionException when too many checks are waiting already
+     *                                                          (64), nothing is started and listener is never called
+     */
+    public static PermissionCheck checkAsync(Context context, ArrayList<String> permissions, PermissionCheck.Listener listener) {
+        return startCheck(engine(context), null, permissions, listener);
+    }
 
     /**
-     * This method allows developer to easily request permission/s
-     * anywhere within some Activity Context
+     * Same as {@link #checkAsync(Context, ArrayList, PermissionCheck.Listener)}, the check is
+     * cancelled (and listener released) when activityContext is destroyed
      *
      * @param activityContext
      * @param permissions
+     * @param listener
+     * @return handle of the check
+     * @throws java.util.concurrent.RejectedExecutionException when too many checks are waiting already
      */
-    @SuppressLint("NewApi") // we can suppress it this time : canMakeSmores() tests for api level
-    public static void request(Activity activityContext, ArrayList<String> permissions, Callback callback) {
-        PermissionStatus status = new PermissionStatus();
-
-        //but have we already asked for them?
-        //filter out the permissions we have already accepted
-        ArrayList<String> permissionsToRequest = findUnAskedPermissions(activityContext, permissions);
-        //get the permissions we have asked for before but were not granted..
-        //we will store this in a global list to access later.
-        ArrayList<String> permissionsRejected = findRejectedPermissions(activityContext, permissions);
-
-        //ask for those unasked first, then verify if we asked for some previously rejected
-        if (permissionsToRequest.size() > 0) {//we need to ask for permissions
-            // ask only if this dev is running on Marshmallow
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                // save those we last asked for
-                savePermissionsRequested(activityContext, permissionsToRequest);
-
-                activityContext.requestPermissions(
-                        permissionsToRequest.toArray(new String[permissionsToRequest.size()]),
-                        requestCode(permissionsToRequest)
-                );
-            } else {
-                // fallback on older APIs to let developer know of missing something in Manifesto
-                Log.e(TAG, "request: Permissions requested are missing in manifest! Add following : " + permissionsToRequest, new SecurityException());
-            }
-            //mark all these as asked..
-            for (String perm : permissionsToRequest) {
-                markAsAsked(activityContext, perm);
-            }
-        } else {
-            // if we add all permissions ...
-            status.addGranted(permissions);
-            // ... then add also rejected ones,
-            // addDenied will remove all permission in rejected ones from status.granted
-            // leaving only granted ones in status.granted
-
-            status.addDenied(permissionsRejected);
-            //show the success
-            if (permissionsRejected.size() < permissions.size()) {
-                //this means we can show success because some were already accepted.
-                callback.onPermissionGranted(status);
-            }
+    public static PermissionCheck checkAsync(Activity activityContext, ArrayList<String> permissions, PermissionCheck.Listener listener) {
+        watchLifecycle(activityContext);
+        return startCheck(engine(activityContext), activityContext, permissions, listener);
+    }
 
-            if (permissionsRejected.size() > 0) {
-                //we have none to request but some previously rejected..tell the user.
-                //It may be better to show a dialog here in a prod application
-                callback.onPermissionDenied(status);
+    private static PermissionCheck startCheck(final PermissionEngine<Callback> engine, Activity owner,
+                                              ArrayList<String> permissions, PermissionCheck.Listener listener) {
+        final ArrayList<String> wanted = new ArrayList<>(permissions);
+        PermissionCheck check = new PermissionCheck(new Callable<PermissionStatus>() {
+            @Override
+            public PermissionStatus call() {
+                for (String perm : wanted) {
+                    // load asked marker as well, request() will need it
+                    engine.shouldWeAsk(perm);
+                }
+                return engine.check(wanted);
             }
-        }
+        }, listener);
+        check.start(owner);
+        return check;
     }
 
 
@@ -179,225 +240,449 @@ public class RuntimePermissionsUtils {
      *
      * @param context
      * @param requestCode
-     * @param callback
+     * @param callback    gets the status of the whole request, may be null. Callbacks passed to {@link #request}
+     *                    get the status of just the permissions they requested, unless it is the same callback
      */
     public static void verify(Context context, int requestCode, Callback callback) {
-        PermissionStatus status = new PermissionStatus();
-        switch (requestCode) {
-            case FINE_LOCATION_RESULT:
-                if (hasPermission(context, ACCESS_FINE_LOCATION)) {
-                    status.addGranted(ACCESS_FINE_LOCATION);
-                    callback.onPermissionGranted(status);
+        PermissionEngine<Callback> engine = engine(context);
+        // not known anymore: after a process restart it is what we saved before the dialog, otherwise nothing
+        PendingRequest<Callback> pending = engine.resolve(requestCode);
+        if (pending.getPermissions().length > 0) {
+            PermissionStatus status;
+            TraceSections.begin(TraceSections.VERIFY);
+            try {
+                status = engine.verify(pending);
+            } finally {
+                TraceSections.end();
+            }
+            deliver(engine, pending, status, callback);
+        }
+        showNext(context, engine, pending);
+    }
 
-                } else {
+    /**
+     * Same as {@link #verify(Context, int, Callback)}, but builds the status straight from the results
+     * the system passed to onRequestPermissionsResult, so no permission has to be checked again.
+     * The results are also stored in the permission state cache.
+     *
+     * @param context
+     * @param requestCode
+     * @param permissions  as received in onRequestPermissionsResult
+     * @param grantResults as received in onRequestPermissionsResult
+     * @param callback     gets the status of the whole request, may be null, see {@link #verify(Context, int, Callback)}
+     */
+    public static void verify(Context context, int requestCode, String[] permissions, int[] grantResults, Callback callback) {
+        if (permissions.length == 0 || permissions.length != grantResults.length) {
+            // the request was interrupted, nothing to take over - check the states ourselves
+            verify(context, requestCode, callback);
+            return;
+        }
 
-                    status.addDenied(ACCESS_FINE_LOCATION);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case COARSE_LOCATION_RESULT:
-                if (hasPermission(context, ACCESS_COARSE_LOCATION)) {
-                    status.addGranted(ACCESS_COARSE_LOCATION);
-                    callback.onPermissionGranted(status);
-
-                } else {
-                    status.addDenied(ACCESS_COARSE_LOCATION);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case CALL_PHONE_RESULT:
-                if (hasPermission(context, CALL_PHONE)) {
-                    status.addGranted(CALL_PHONE);
-                    callback.onPermissionGranted(status);
-                } else {
-                    status.addDenied(CALL_PHONE);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case CAMERA_RESULT:
-                if (hasPermission(context, CAMERA)) {
-                    status.addGranted(CAMERA);
-                    callback.onPermissionGranted(status);
-                } else {
-                    status.addDenied(CAMERA);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case READ_CONTACTS_RESULT:
-                if (hasPermission(context, READ_CONTACTS)) {
-                    status.addGranted(READ_CONTACTS);
-                    callback.onPermissionGranted(status);
-                } else {
-                    status.addDenied(READ_CONTACTS);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case WRITE_EXTERNAL_RESULT:
-                if (hasPermission(context, WRITE_EXTERNAL_STORAGE)) {
-                    status.addGranted(WRITE_EXTERNAL_STORAGE);
-                    callback.onPermissionGranted(status);
-                } else {
-                    status.addDenied(WRITE_EXTERNAL_STORAGE);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            case RECORD_AUDIO_RESULT:
-                if (hasPermission(context, RECORD_AUDIO)) {
-                    status.addGranted(RECORD_AUDIO);
-                    callback.onPermissionGranted(status);
-                } else {
-                    status.addDenied(RECORD_AUDIO);
-                    callback.onPermissionDenied(status);
-                }
-                break;
-            default:
-                if (isCombinedRequestCode(requestCode)) {
-                    boolean someAccepted = false;
-                    boolean someRejected = false;
-                    for (String perm : permissionsToRequest(context)) {
-                        if (hasPermission(context, perm)) {
-                            someAccepted = true;
-                            status.addGranted(perm);
-                        } else {
-                            someRejected = true;
-                            status.addDenied(perm);
-                        }
-                    }
+        PermissionEngine<Callback> engine = engine(context);
+        PendingRequest<Callback> pending = engine.resolve(requestCode, permissions);
+        PermissionStatus status;
+        TraceSections.begin(TraceSections.VERIFY);
+        try {
+            status = engine.verify(pending, permissions, grantResults);
+        } finally {
+            TraceSections.end();
+        }
+        deliver(engine, pending, status, callback);
+        showNext(context, engine, pending);
+    }
 
-                    if (status.denied.size() > 0) {
-                        someRejected = true;
-                    }
+    private static void deliver(PermissionEngine<Callback> engine, PendingRequest<Callback> pending,
+                                PermissionStatus status, Callback callback) {
+        if (callback != null)
+            notify(callback, status);
+        for (int i = 0; i < pending.getCallerCount(); i++) {
+            Callback caller = pending.getCallback(i);
+            if (caller != null && caller != callback)
+                notify(caller, engine.statusFor(pending, i, status));
+        }
+    }
 
-                    if (someAccepted) {
-                        callback.onPermissionGranted(status);
-                    }
-                    if (someRejected) {
-                        callback.onPermissionDenied(status);
-                    }
-                }
-                break;
+    private static void notify(Callback callback, PermissionStatus status) {
+        if (status.hasGranted()) {
+            //this means we can show success because some were accepted.
+            callback.onPermissionGranted(status);
+        }
+        if (status.hasDenied()) {
+            callback.onPermissionDenied(status);
         }
+    }
 
+    /**
+     * Shows the dialog of requests queued while pending was in flight. Without an Activity to show it
+     * they keep waiting, the next request of their Activity takes them along.
+     */
+    private static void showNext(Context context, PermissionEngine<Callback> engine, PendingRequest<Callback> pending) {
+        if (!(context instanceof Activity) || Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return;
+        PendingRequest<Callback> next = engine.next(pending);
+        if (next != null)
+            show((Activity) context, next);
     }
 
     /**
-     * Restores previously saved requested permissions from Shared Prefs
+     * We may want to ask the user again at their request.. Let's clear the
+     * marked as seen preference for that permission.
+     *
      * @param context
+     * @param permission
      */
-    private static ArrayList<String> permissionsToRequest(Context context) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            return new ArrayList<>(PreferenceManager.getDefaultSharedPreferences(context).getStringSet(REQUESTED_PERMISSIONS, new ArraySet<String>()));
-        } else {
-            return new ArrayList<String>();
-        }
+    public static void clearMarkAsAsked(Context context, String permission) {
+        engine(context).clearMarkAsAsked(permission);
     }
 
     /**
-     * Saves currently requested permissions to Shared Prefs
+     * Same as {@link #clearMarkAsAsked(Context, String)} for all the permissions in one write,
+     * e.g. for an "Allow to Ask Again" action. Their ask history is reset too.
+     *
      * @param context
-     * @param perms
+     * @param permissions
      */
-
-    private static void savePermissionsRequested(Context context, ArrayList<String> perms) {
-        ArraySet<String> set = null;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            set = new ArraySet<String>();
-            for (String perm : perms) {
-                set.add(perm);
-            }
-            PreferenceManager.getDefaultSharedPreferences(context).edit().putStringSet(REQUESTED_PERMISSIONS, set);
-        }
+    public static void clearMarkAsAsked(Context context, List<String> permissions) {
+        engine(context).clearMarkAsAsked(permissions);
     }
 
     /**
-     * method that will return whether the permission is accepted.
+     * Lets permissions be asked for again as policy says - how many times, how long after a denial,
+     * whether with a rationale. Decisions are answered from the ask history in memory, loaded once.
+     * Without a policy every permission is asked for once only. A permission the policy wants a rationale for
+     * is not requested, it is denied until {@link #markRationaleShown} was called for it.
      *
      * @param context
-     * @param permission
-     * @return
+     * @param policy
+     * @throws IllegalStateException after {@link #shareAcrossProcesses()}, the ask history is not shared
      */
-    private static boolean hasPermission(Context context, String permission) {
-        return (checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED);
+    public static void setAskPolicy(Context context, AskPolicy policy) {
+        engine(context).setAskPolicy(policy);
     }
 
     /**
-     * method to determine whether we have asked
-     * for this permission before.. if we have, we do not want to ask again.
-     * They either rejected us or later removed the permission.
-     *
      * @param context
      * @param permission
-     * @return
+     * @return {@link AskPolicy#ASK}, {@link AskPolicy#ASK_WITH_RATIONALE}, {@link AskPolicy#WAIT} or {@link AskPolicy#NEVER}
      */
-    private static boolean shouldWeAsk(Context context, String permission) {
-        return (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(permission, true));
+    public static int decide(Context context, String permission) {
+        return engine(context).decide(permission);
     }
 
     /**
-     * we will save that we have already asked the user
+     * Call it once the rationale of permission was shown, when the policy asked for it
      *
      * @param context
      * @param permission
      */
-    private static void markAsAsked(Context context, String permission) {
-        PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(permission, false).apply();
+    public static void markRationaleShown(Context context, String permission) {
+        engine(context).markRationaleShown(permission);
     }
 
     /**
-     * We may want to ask the user again at their request.. Let's clear the
-     * marked as seen preference for that permission.
+     * Forgets all cached grant states, next request will check them again.
+     * It is done automatically on every Activity resume once {@link #request} was called,
+     * call it yourself when you know the permissions could have changed meanwhile.
+     */
+    public static synchronized void invalidateCache() {
+        if (engine != null)
+            engine.invalidate();
+    }
+
+    /**
+     * Subscribes listener to permission changes, e.g. revocations made in system settings. On every Activity
+     * resume, permissions checked before are checked again on a background thread, listener gets
+     * those whose state flipped on the main thread.
      *
-     * @param context
-     * @param permission
+     * @param activityContext
+     * @param listener        held until {@link #unsubscribe(Context, PermissionListener)}
      */
-    public static void clearMarkAsAsked(Context context, String permission) {
-        PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(permission, true).apply();
+    public static void subscribe(Activity activityContext, PermissionListener listener) {
+        watchLifecycle(activityContext);
+        engine(activityContext).subscribe(listener);
+    }
+
+    public static void unsubscribe(Context context, PermissionListener listener) {
+        engine(context).unsubscribe(listener);
     }
 
+    /**
+     * Invalidates the cache, changes found meanwhile go to subscribed listeners
+     */
+    private static void refreshCache() {
+        final PermissionEngine<Callback> engine = currentEngine();
+        if (engine == null)
+            return;
+        Callable<PermissionStatus> diff = engine.refresh();
+        if (diff == null)
+            return;
+        try {
+            new PermissionCheck(diff, new PermissionCheck.Listener() {
+                @Override
+                public void onChecked(PermissionStatus changes) {
+                    engine.publish(changes);
+                }
+            }).start(null);
+        } catch (RejectedExecutionException e) {
+            // too many checks waiting, changes will show up in the next results
+            Log.w(TAG, "refreshCache: changes of permissions not checked", e);
+        }
+    }
 
     /**
-     * This method is used to determine the permissions we do not have accepted yet and ones that we have not already
-     * bugged the user about.  This comes in handle when you are asking for multiple permissions at once.
+     * Exports latencies of request phases and how often each permission was granted or denied
      *
      * @param context
-     * @param wanted
-     * @return
+     * @param sink
      */
-    private static ArrayList<String> findUnAskedPermissions(Context context, ArrayList<String> wanted) {
-        ArrayList<String> result = new ArrayList<String>();
+    public static void exportMetrics(Context context, MetricsSink sink) {
+        engine(context).metrics().exportTo(sink);
+    }
+
+    /**
+     * Starts recording every decision (planned, asked, answered, cleared) to a ring of the last capacity events,
+     * so a misbehaving permission flow can be reconstructed from {@link #dumpJournal(Context)}.
+     * Off by default, recording costs nothing then.
+     *
+     * @param context
+     * @param capacity number of events kept, e.g. 1024
+     */
+    public static void enableJournal(Context context, int capacity) {
+        engine(context).setJournal(new PermissionJournal(capacity));
+    }
 
-        for (String perm : wanted) {
-            if (!hasPermission(context, perm) && shouldWeAsk(context, perm)) {
-                result.add(perm);
+    /**
+     * Writes the journal to a file in the files directory, see {@link PermissionJournal#writeTo(java.io.OutputStream)}
+     *
+     * @param context
+     * @return the file, null when the journal is not enabled or cannot be written
+     */
+    public static File dumpJournal(Context context) {
+        PermissionJournal journal = engine(context).journal();
+        if (journal == null)
+            return null;
+        File file = new File(context.getFilesDir(), JOURNAL_FILE);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                journal.writeTo(out);
+            } finally {
+                out.close();
             }
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "dumpJournal: cannot write " + file, e);
+            return null;
         }
+    }
+
+    /**
+     * Loads persisted state and grant states of the runtime permissions declared in the manifest on a background thread,
+     * so the first request does not read the disk on the UI thread. Call it from Application.onCreate.
+     * Calls made before it finishes wait for it, later ones do not wait at all.
+     *
+     * @param context
+     */
+    public static void prewarm(Context context) {
+        final CountDownLatch latch;
+        final boolean shared;
+        synchronized (RuntimePermissionsUtils.class) {
+            if (engine != null || prewarming != null)
+                return;
+            latch = prewarming = new CountDownLatch(1);
+            shared = sharedAcrossProcesses;
+        }
+        final Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PermissionEngine<Callback> prewarmed = createEngine(appContext, shared);
+                    ManifestIndex manifest = prewarmed.manifest();
+                    // only what the app can ever request, every check is a binder call
+                    prewarmed.prewarm(manifest != null ? manifest.declaredRuntime(Build.VERSION.SDK_INT)
+                            : PermissionSet.runtime(Build.VERSION.SDK_INT));
+                    synchronized (RuntimePermissionsUtils.class) {
+                        // unless setup() replaced it meanwhile
+                        if (engine == null)
+                            engine = prewarmed;
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }, "RuntimePermissionsPrewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replaces the way permissions are checked and asked markers stored, e.g. by faster implementations.
+     * By default PackageManager and a small file in the files directory are used. Call it before any other method.
+     *
+     * @param checker
+     * @param store
+     */
+    public static synchronized void setup(PermissionChecker checker, PermissionStateStore store) {
+        engine = new PermissionEngine<>(checker, store);
+    }
+
+    /**
+     * Keeps asked markers in a memory-mapped file all the processes of the app read and write, so a request
+     * made by one process is known to the others at once. Call it in every process before any other method,
+     * Application.onCreate is the place. Markers kept by the default single-process store are not moved.
+     * The ask history is not shared, so {@link #setAskPolicy(Context, AskPolicy)} cannot be used with it.
+     */
+    public static synchronized void shareAcrossProcesses() {
+        sharedAcrossProcesses = true;
+    }
 
-        return result;
+    /**
+     * @param context
+     * @return engine deciding about requests, created with Android checker and store on first use
+     */
+    static PermissionEngine<Callback> engine(Context context) {
+        CountDownLatch latch;
+        synchronized (RuntimePermissionsUtils.class) {
+            if (engine != null)
+                return engine;
+            latch = prewarming;
+        }
+        if (latch != null)
+            awaitUninterruptibly(latch);
+        synchronized (RuntimePermissionsUtils.class) {
+            // prewarm may have failed
+            if (engine == null)
+                engine = createEngine(context, sharedAcrossProcesses);
+            return engine;
+        }
     }
 
+    /**
+     * @return engine if it was created already, null otherwise
+     */
+    private static synchronized PermissionEngine<Callback> currentEngine() {
+        return engine;
+    }
 
     /**
-     * this will return us all the permissions we have previously asked for but
-     * currently do not have permission to use. This may be because they declined us
-     * or later revoked our permission. This becomes useful when you want to tell the user
-     * what permissions they declined and why they cannot use a feature.
+     * Reads PackageInfo of the manifest and migrates SharedPreferences, meant for the prewarm thread.
+     * Made on the main thread (prewarm was not called or failed) it is reported as a StrictMode slow call.
      *
      * @param context
-     * @param wanted
+     * @param shared
      * @return
      */
-    private static ArrayList<String> findRejectedPermissions(Context context, ArrayList<String> wanted) {
-        ArrayList<String> result = new ArrayList<String>();
+    private static PermissionEngine<Callback> createEngine(Context context, boolean shared) {
+        if (Looper.myLooper() == Looper.getMainLooper())
+            StrictMode.noteSlowCall("RuntimePermissionsUtils: engine created on the main thread, call prewarm()");
+        PermissionStateStore store = shared ? sharedStore(context) : null;
+        if (store == null) {
+            FileStateStore fileStore = new FileStateStore(new File(context.getFilesDir(), STATE_FILE));
+            SharedPreferencesStateStore.migrate(context, fileStore);
+            store = fileStore;
+        }
+        PermissionEngine<Callback> engine = new PermissionEngine<>(new AndroidPermissionChecker(context), store);
+        engine.setManifest(manifestIndex(context));
+        return engine;
+    }
 
-        for (String perm : wanted) {
-            if (!hasPermission(context, perm) && !shouldWeAsk(context, perm)) {
-                result.add(perm);
+    /**
+     * @param context
+     * @return store shared by all the processes, null if the file cannot be mapped
+     */
+    private static PermissionStateStore sharedStore(Context context) {
+        try {
+            return new SharedFileStateStore(new File(context.getFilesDir(), SHARED_STATE_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "sharedStore: falling back to single process store", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param context
+     * @return permissions declared in the manifest, null if they cannot be read
+     */
+    private static ManifestIndex manifestIndex(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS);
+            return new ManifestIndex(info.requestedPermissions);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "manifestIndex: own package not found", e);
+            return null;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Registers (only once per process) lifecycle callbacks invalidating the cache on every resume,
+     * the user may have changed permissions in system settings while we were in background
+     *
+     * @param activity
+     */
+    private static synchronized void watchLifecycle(Activity activity) {
+        if (lifecycleWatched)
+            return;
+        lifecycleWatched = true;
+        activity.getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityResumed(Activity activity) {
+                refreshCache();
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                PermissionEngine<Callback> engine = currentEngine();
+                if (engine != null)
+                    RequestHolder.restore(engine, activity, savedInstanceState);
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+                RequestHolder.deliver(activity);
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
 
-        return result;
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                PermissionEngine<Callback> engine = currentEngine();
+                if (engine != null)
+                    RequestHolder.save(engine, activity, outState);
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                PermissionCheck.cancelAll(activity);
+                PermissionEngine<Callback> engine = currentEngine();
+                if (engine != null)
+                    RequestHolder.hold(engine, activity);
+            }
+        });
     }
 
+
 // sorry Smores .. Android Studio precompiler does not jump through methods just reads the condition
 //    /**
 //     * Just a check to see if we have marshmallows (version 23)
@@ -408,43 +693,4 @@ public class RuntimePermissionsUtils {
 //        return (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1);
 //    }
 
-    /**
-     * This method verifies if more than one request were made
-     *
-     * @param reqCode
-     * @return
-     */
-    private static boolean isCombinedRequestCode(int reqCode) {
-        return (reqCode % 100 > 1);
-    }
-
-    /**
-     * This method combines all the permissions requested into one int request code
-     *
-     * @param permissions
-     * @return
-     */
-    private static int requestCode(ArrayList<String> permissions) {
-        int resultCode = 0;
-        for (String permission : permissions) {
-            if (permission.contains(ACCESS_COARSE_LOCATION)) {
-                resultCode += COARSE_LOCATION_RESULT;
-            } else if (permission.contains(ACCESS_FINE_LOCATION)) {
-                resultCode += FINE_LOCATION_RESULT;
-            } else if (permission.contains(CALL_PHONE)) {
-                resultCode += CALL_PHONE_RESULT;
-            } else if (permission.contains(CAMERA)) {
-                resultCode += CAMERA_RESULT;
-            } else if (permission.contains(READ_CONTACTS)) {
-                resultCode += READ_CONTACTS_RESULT;
-            } else if (permission.contains(RECORD_AUDIO)) {
-                resultCode += RECORD_AUDIO_RESULT;
-            } else if (permission.contains(WRITE_EXTERNAL_STORAGE)) {
-                resultCode += WRITE_EXTERNAL_RESULT;
-            }
-            // TODO : add other result codes
-        }
-        return resultCode;
-    }
-
 }
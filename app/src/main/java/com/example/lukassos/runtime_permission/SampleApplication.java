@@ -0,0 +1,14 @@
+package com.example.lukassos.runtime_permission;
+
+import android.app.Application;
+
+/**
+ * Loads permission state in background before the first request
+ */
+public class SampleApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        RuntimePermissionsUtils.prewarm(this);
+    }
+}
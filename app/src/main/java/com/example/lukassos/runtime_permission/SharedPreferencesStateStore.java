@@ -0,0 +1,65 @@
+package com.example.lukassos.runtime_permission;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.example.lukassos.runtime_permission.core.FileStateStore;
+import com.example.lukassos.runtime_permission.core.PermissionRegistry;
+import com.example.lukassos.runtime_permission.core.PermissionStateStore;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Asked markers and last requested permissions kept in default SharedPreferences by older versions.
+ * <p>
+ * Not used as a store anymore, see {@link FileStateStore}, the state is only moved from here,
+ * see {@link #migrate(Context, FileStateStore)}.
+ */
+class SharedPreferencesStateStore {
+    private static final String REQUESTED_PERMISSIONS = "requested_permissions";
+
+    private SharedPreferencesStateStore() {
+    }
+
+    /**
+     * Moves asked markers and requested permissions kept in default SharedPreferences by older versions
+     * to target, unless target already holds some state. The keys are removed afterwards.
+     * Target is written even when there is nothing to move, so the preferences are read just once.
+     * Markers of permissions neither in {@link PermissionRegistry} nor last requested cannot be found.
+     *
+     * @param context
+     * @param target
+     */
+    static void migrate(Context context, FileStateStore target) {
+        if (target.exists())
+            return;
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> requested = preferences.getStringSet(REQUESTED_PERMISSIONS, null);
+        HashSet<String> keys = new HashSet<>();
+        for (int i = 0; i < PermissionRegistry.count(); i++) {
+            keys.add(PermissionRegistry.nameOf(i));
+        }
+        if (requested != null)
+            keys.addAll(requested);
+
+        PermissionStateStore.Batch batch = target.edit();
+        SharedPreferences.Editor editor = preferences.edit();
+        boolean found = requested != null;
+        for (String key : keys) {
+            if (!preferences.contains(key))
+                continue;
+            found = true;
+            if (!preferences.getBoolean(key, true))
+                batch.markAsAsked(key);
+            editor.remove(key);
+        }
+        if (requested != null)
+            batch.setRequested(requested);
+        // an empty batch still creates the file, the migration is done
+        batch.commit();
+        if (found)
+            editor.remove(REQUESTED_PERMISSIONS).apply();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.lukassos.runtime_permission;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Sections of request phases in system traces (systrace, Perfetto), Trace is there since Jelly Bean MR2.
+ * Outside of tracing a section costs a single native flag check.
+ */
+final class TraceSections {
+    static final String REQUEST = "RuntimePermissions:request";
+    static final String PERSIST = "RuntimePermissions:persist";
+    static final String VERIFY = "RuntimePermissions:verify";
+
+    private static final boolean SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private TraceSections() {
+    }
+
+    /**
+     * @param name one of the constants, ended by {@link #end()} on the same thread
+     */
+    @SuppressLint("NewApi")
+    static void begin(String name) {
+        if (SUPPORTED)
+            Trace.beginSection(name);
+    }
+
+    @SuppressLint("NewApi")
+    static void end() {
+        if (SUPPORTED)
+            Trace.endSection();
+    }
+}
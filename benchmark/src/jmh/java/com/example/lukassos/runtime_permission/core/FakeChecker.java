@@ -0,0 +1,19 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.HashSet;
+
+/**
+ * PackageManager stand-in - grants what it was told to
+ */
+class FakeChecker implements PermissionChecker {
+    private final HashSet<String> granted = new HashSet<>();
+
+    void grant(String permission) {
+        granted.add(permission);
+    }
+
+    @Override
+    public boolean isGranted(String permission) {
+        return granted.contains(permission);
+    }
+}
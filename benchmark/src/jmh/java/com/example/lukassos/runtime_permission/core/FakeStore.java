@@ -0,0 +1,60 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-memory store, commits apply the batch at once
+ */
+class FakeStore implements PermissionStateStore {
+    private final HashMap<String, Boolean> asked = new HashMap<>();
+    private List<String> requested = new ArrayList<>();
+
+    @Override
+    public synchronized boolean isAsked(String permission) {
+        Boolean value = asked.get(permission);
+        return value != null && value;
+    }
+
+    @Override
+    public synchronized List<String> loadRequested() {
+        return new ArrayList<>(requested);
+    }
+
+    @Override
+    public Batch edit() {
+        return new Batch() {
+            private final HashMap<String, Boolean> changes = new HashMap<>();
+            private List<String> changedRequested;
+
+            @Override
+            public Batch markAsAsked(String permission) {
+                changes.put(permission, true);
+                return this;
+            }
+
+            @Override
+            public Batch clearMarkAsAsked(String permission) {
+                changes.put(permission, false);
+                return this;
+            }
+
+            @Override
+            public Batch setRequested(Collection<String> permissions) {
+                changedRequested = new ArrayList<>(permissions);
+                return this;
+            }
+
+            @Override
+            public void commit() {
+                synchronized (FakeStore.this) {
+                    asked.putAll(changes);
+                    if (changedRequested != null)
+                        requested = changedRequested;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Visibility of many features sharing a few permissions, right after a resume invalidated the cache:
+ * one pass over a feature index compared to a check of every feature list
+ */
+@State(Scope.Thread)
+public class FeatureIndexBenchmark {
+    @Param({"10", "50"})
+    int features;
+
+    private PermissionEngine<Object> engine;
+    private ArrayList<List<String>> lists;
+    private FeatureIndex index;
+
+    @Setup
+    public void setUp() {
+        ArrayList<String> permissions = Fixtures.permissions(7);
+        engine = new PermissionEngine<>(Fixtures.halfGranted(new FakeChecker(), permissions), new FakeStore());
+        lists = new ArrayList<>(features);
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        for (int i = 0; i < features; i++) {
+            // two or three of the seven permissions
+            List<String> list = new ArrayList<>();
+            for (int j = 0; j < 2 + i % 2; j++) {
+                list.add(permissions.get((i + j * 3) % permissions.size()));
+            }
+            lists.add(list);
+            builder.add("feature" + i, list.toArray(new String[list.size()]));
+        }
+        index = builder.build();
+    }
+
+    @Benchmark
+    public FeatureStates evaluateIndex() {
+        engine.invalidate();
+        return engine.evaluate(index);
+    }
+
+    @Benchmark
+    public int checkEachFeature() {
+        engine.invalidate();
+        int available = 0;
+        for (List<String> list : lists) {
+            if (!engine.check(list).hasDenied())
+                available++;
+        }
+        return available;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+
+/**
+ * Classification of wanted permissions, with the state cache warm and cold
+ */
+@State(Scope.Thread)
+public class FindPermissionsBenchmark {
+    @Param({"1", "7", "50"})
+    int count;
+
+    private PermissionEngine<Object> engine;
+    private ArrayList<String> permissions;
+
+    @Setup
+    public void setUp() {
+        permissions = Fixtures.permissions(count);
+        engine = new PermissionEngine<>(Fixtures.halfGranted(new FakeChecker(), permissions), new FakeStore());
+    }
+
+    @Benchmark
+    public void warmCache(Blackhole blackhole) {
+        blackhole.consume(engine.findUnAskedPermissions(permissions));
+        blackhole.consume(engine.findRejectedPermissions(permissions));
+    }
+
+    @Benchmark
+    public void coldCache(Blackhole blackhole) {
+        engine.invalidate();
+        blackhole.consume(engine.findUnAskedPermissions(permissions));
+        blackhole.consume(engine.findRejectedPermissions(permissions));
+    }
+}
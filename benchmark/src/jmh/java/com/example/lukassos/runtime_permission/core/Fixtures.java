@@ -0,0 +1,45 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+
+/**
+ * Permission lists shared by the benchmarks
+ */
+final class Fixtures {
+    private static final String[] PLATFORM = {
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.CAMERA",
+            "android.permission.READ_CONTACTS",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.CALL_PHONE",
+            "android.permission.WRITE_EXTERNAL_STORAGE"
+    };
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param count
+     * @return platform permissions first, custom ones when there are not enough of them
+     */
+    static ArrayList<String> permissions(int count) {
+        ArrayList<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(i < PLATFORM.length ? PLATFORM[i] : "com.example.permission.CUSTOM_" + i);
+        }
+        return result;
+    }
+
+    /**
+     * @param checker
+     * @param permissions
+     * @return checker granting every second permission
+     */
+    static FakeChecker halfGranted(FakeChecker checker, ArrayList<String> permissions) {
+        for (int i = 0; i < permissions.size(); i += 2) {
+            checker.grant(permissions.get(i));
+        }
+        return checker;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+
+/**
+ * Per-frame permission checks through a guard, compared to checking a list, gc.alloc.rate should stay 0
+ */
+@State(Scope.Thread)
+public class GuardBenchmark {
+    @Param({"1", "7", "50"})
+    int count;
+
+    private PermissionEngine<Object> engine;
+    private ArrayList<String> permissions;
+    private PermissionGuard guard;
+
+    @Setup
+    public void setUp() {
+        permissions = Fixtures.permissions(count);
+        FakeChecker checker = new FakeChecker();
+        for (String perm : permissions) {
+            checker.grant(perm);
+        }
+        engine = new PermissionEngine<>(checker, new FakeStore());
+        guard = engine.guard(PermissionSet.of(permissions));
+        guard.allGranted();
+    }
+
+    @Benchmark
+    public boolean guard() {
+        return guard.allGranted();
+    }
+
+    @Benchmark
+    public boolean checkList() {
+        return !engine.check(permissions).hasDenied();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Building of PermissionStatus as done by request() and verify()
+ */
+@State(Scope.Thread)
+public class PermissionStatusBenchmark {
+    @Param({"1", "7", "50"})
+    int count;
+
+    private ArrayList<String> permissions;
+    private ArrayList<String> rejected;
+
+    @Setup
+    public void setUp() {
+        permissions = Fixtures.permissions(count);
+        rejected = new ArrayList<>();
+        for (int i = 1; i < count; i += 2) {
+            rejected.add(permissions.get(i));
+        }
+    }
+
+    @Benchmark
+    public PermissionStatus grantedThenDenied() {
+        return new PermissionStatus.Builder().addGranted(permissions).addDenied(rejected).build();
+    }
+
+    @Benchmark
+    public PermissionStatus removeFromAll() {
+        PermissionStatus.Builder status = new PermissionStatus.Builder().addGranted(permissions);
+        for (String perm : permissions) {
+            status.removeFromAll(perm);
+        }
+        return status.build();
+    }
+
+    @Benchmark
+    public List<String> deniedView() {
+        return new PermissionStatus.Builder().addDenied(permissions).build().getDenied();
+    }
+
+    @Benchmark
+    public PermissionStatus deltaOfGranted() {
+        PermissionStatus status = new PermissionStatus.Builder().addGranted(permissions).build();
+        return status.withDenied(permissions.get(0));
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Request code assignment and lookup
+ */
+@State(Scope.Thread)
+public class RequestCodeBenchmark {
+    @Param({"1", "7", "50"})
+    int count;
+
+    private String[] permissions;
+    private RequestRegistry<Object> registry;
+
+    @Setup
+    public void setUp() {
+        permissions = Fixtures.permissions(count).toArray(new String[count]);
+        registry = new RequestRegistry<>();
+    }
+
+    @Benchmark
+    public PendingRequest<Object> registerAndResolve() {
+        return registry.remove(registry.register(permissions, null).requestCode);
+    }
+}
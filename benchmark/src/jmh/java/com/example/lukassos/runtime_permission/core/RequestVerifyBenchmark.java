@@ -0,0 +1,86 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+
+/**
+ * Full request -> system dialog -> verify round trip through the calls RuntimePermissionsUtils makes -
+ * plan, submit, resolve, verify, statusFor, next - the dialog answers instantly
+ */
+@State(Scope.Thread)
+public class RequestVerifyBenchmark {
+    @Param({"1", "7", "50"})
+    int count;
+
+    private final Object activity = new Object();
+    private PermissionEngine<Object> engine;
+    private ArrayList<String> permissions;
+    private ArrayList<String> firstHalf;
+    private int[] grantResults;
+
+    @Setup
+    public void setUp() {
+        permissions = Fixtures.permissions(count);
+        firstHalf = new ArrayList<>(permissions.subList(0, (count + 1) / 2));
+        engine = new PermissionEngine<>(new FakeChecker(), new FakeStore());
+        grantResults = new int[count];
+        for (int i = 0; i < count; i++) {
+            grantResults[i] = i % 2 == 0 ? PermissionChecker.GRANTED : -1;
+        }
+    }
+
+    @Benchmark
+    public PermissionStatus requestThenVerify() {
+        PendingRequest<Object> pending = engine.resolve(request().getRequestCode());
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), grantResults);
+        engine.next(pending);
+        return engine.statusFor(pending, 0, status);
+    }
+
+    @Benchmark
+    public PermissionStatus requestThenVerifyByChecking() {
+        PendingRequest<Object> pending = engine.resolve(request().getRequestCode());
+        PermissionStatus status = engine.verify(pending);
+        engine.next(pending);
+        return engine.statusFor(pending, 0, status);
+    }
+
+    /**
+     * A second caller wants all while the first half is in flight, it waits for the next dialog
+     */
+    @Benchmark
+    public PermissionStatus coalescedRequests() {
+        reset();
+        PendingRequest<Object> first = engine.submit(activity, engine.plan(activity, firstHalf), "first");
+        engine.submit(activity, engine.plan(activity, permissions), "second");
+
+        PendingRequest<Object> pending = engine.resolve(first.getRequestCode());
+        engine.verify(pending, pending.getPermissions(), grantResults);
+        PendingRequest<Object> next = engine.next(pending);
+        if (next == null)
+            return null;
+        pending = engine.resolve(next.getRequestCode());
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), grantResults);
+        engine.next(pending);
+        return engine.statusFor(pending, 0, status);
+    }
+
+    private PendingRequest<Object> request() {
+        reset();
+        return engine.submit(activity, engine.plan(activity, permissions), "callback");
+    }
+
+    private void reset() {
+        // nothing granted and nothing asked yet, so every permission goes to the dialog
+        PermissionStateCache cache = engine.cache();
+        cache.invalidate();
+        for (int i = 0; i < permissions.size(); i++) {
+            cache.putAsked(permissions.get(i), false);
+        }
+    }
+}
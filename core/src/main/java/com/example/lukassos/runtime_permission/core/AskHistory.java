@@ -0,0 +1,179 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How often and when the user was asked for each permission, read by {@link AskPolicy}.
+ * <p>
+ * Every permission has a fixed-width record of two longs in one primitive array - last ask and last denial
+ * in seconds, then ask count and flags - registry permissions at their index, the others appended after them.
+ * A lookup is one array access, the whole history is loaded once and saved in bulk, see {@link HistoryStore}.
+ */
+public final class AskHistory {
+    private static final long FLAG_RATIONALE = 1L << 16;
+    private static final long COUNT_MASK = 0xFFFF;
+
+    private long[] records;
+    // slots of permissions not in the registry, after the registry ones
+    private final HashMap<String, Integer> otherSlots = new HashMap<>();
+
+    public AskHistory() {
+        records = new long[PermissionRegistry.count() * 2];
+    }
+
+    /**
+     * @return copy sharing nothing with this history
+     */
+    public synchronized AskHistory copy() {
+        AskHistory copy = new AskHistory();
+        copy.records = records.clone();
+        copy.otherSlots.putAll(otherSlots);
+        return copy;
+    }
+
+    public synchronized int askCount(String permission) {
+        int slot = slotOf(permission, false);
+        return slot < 0 ? 0 : (int) (records[slot + 1] & COUNT_MASK);
+    }
+
+    /**
+     * @param permission
+     * @return when it was asked for the last time, 0 when never
+     */
+    public synchronized long lastAskedMillis(String permission) {
+        int slot = slotOf(permission, false);
+        return slot < 0 ? 0 : (records[slot] >>> 32) * 1000;
+    }
+
+    /**
+     * @param permission
+     * @return when it was denied the last time, 0 when never
+     */
+    public synchronized long lastDeniedMillis(String permission) {
+        int slot = slotOf(permission, false);
+        return slot < 0 ? 0 : (records[slot] & 0xFFFFFFFFL) * 1000;
+    }
+
+    /**
+     * @param permission
+     * @return whether the rationale was shown since the last ask
+     */
+    public synchronized boolean isRationaleShown(String permission) {
+        int slot = slotOf(permission, false);
+        return slot >= 0 && (records[slot + 1] & FLAG_RATIONALE) != 0;
+    }
+
+    /**
+     * Passes the record of permission to policy, so the policy reads it without another lookup
+     */
+    synchronized int decide(AskPolicy policy, String permission, long nowMillis) {
+        int slot = slotOf(permission, false);
+        if (slot < 0)
+            return policy.decide(0, 0, 0, false, nowMillis);
+        long times = records[slot];
+        long counts = records[slot + 1];
+        return policy.decide((int) (counts & COUNT_MASK), (times >>> 32) * 1000, (times & 0xFFFFFFFFL) * 1000,
+                (counts & FLAG_RATIONALE) != 0, nowMillis);
+    }
+
+    /**
+     * @param permissions
+     * @param skip        mask of registry permissions among them not shown to the user, granted silently
+     * @param nowMillis
+     */
+    synchronized void recordAsked(Iterable<String> permissions, long skip, long nowMillis) {
+        long seconds = seconds(nowMillis);
+        for (String perm : permissions) {
+            if ((PermissionRegistry.bitOf(perm) & skip) != 0)
+                continue;
+            int slot = slotOf(perm, true);
+            records[slot] = seconds << 32 | (records[slot] & 0xFFFFFFFFL);
+            long count = Math.min(COUNT_MASK, (records[slot + 1] & COUNT_MASK) + 1);
+            // a new ask needs a new rationale
+            records[slot + 1] = (records[slot + 1] & ~(COUNT_MASK | FLAG_RATIONALE)) | count;
+        }
+    }
+
+    synchronized void recordDenied(String permission, long nowMillis) {
+        int slot = slotOf(permission, true);
+        records[slot] = (records[slot] & 0xFFFFFFFF00000000L) | seconds(nowMillis);
+    }
+
+    synchronized void recordRationale(String permission) {
+        int slot = slotOf(permission, true);
+        records[slot + 1] |= FLAG_RATIONALE;
+    }
+
+    synchronized void clear(Iterable<String> permissions) {
+        for (String perm : permissions) {
+            int slot = slotOf(perm, false);
+            if (slot >= 0) {
+                records[slot] = 0;
+                records[slot + 1] = 0;
+            }
+        }
+    }
+
+    /**
+     * @param out
+     * @throws IOException
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        int registrySlots = PermissionRegistry.count() * 2;
+        out.writeShort(PermissionRegistry.count());
+        for (int i = 0; i < registrySlots; i++) {
+            out.writeLong(records[i]);
+        }
+        out.writeShort(otherSlots.size());
+        for (Map.Entry<String, Integer> entry : otherSlots.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(records[entry.getValue()]);
+            out.writeLong(records[entry.getValue() + 1]);
+        }
+    }
+
+    /**
+     * @param in positioned where {@link #writeTo(DataOutputStream)} started, for the same registry layout
+     * @return history read
+     * @throws IOException
+     */
+    static AskHistory readFrom(DataInputStream in) throws IOException {
+        AskHistory history = new AskHistory();
+        if (in.readUnsignedShort() != PermissionRegistry.count())
+            throw new IOException("History of another registry");
+        for (int i = 0; i < history.records.length; i++) {
+            history.records[i] = in.readLong();
+        }
+        int others = in.readUnsignedShort();
+        for (int i = 0; i < others; i++) {
+            int slot = history.slotOf(in.readUTF(), true);
+            history.records[slot] = in.readLong();
+            history.records[slot + 1] = in.readLong();
+        }
+        return history;
+    }
+
+    private int slotOf(String permission, boolean create) {
+        int index = PermissionRegistry.indexOf(permission);
+        if (index != PermissionRegistry.UNKNOWN)
+            return index * 2;
+        Integer slot = otherSlots.get(permission);
+        if (slot != null)
+            return slot;
+        if (!create)
+            return -1;
+        slot = records.length;
+        records = Arrays.copyOf(records, records.length + 2);
+        otherSlots.put(permission, slot);
+        return slot;
+    }
+
+    private static long seconds(long millis) {
+        return (millis / 1000) & 0xFFFFFFFFL;
+    }
+}
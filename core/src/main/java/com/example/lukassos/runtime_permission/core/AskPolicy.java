@@ -0,0 +1,103 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * When to ask for a permission again, decided from its {@link AskHistory} record in O(1),
+ * see {@link PermissionEngine#setAskPolicy(AskPolicy)}. Without a policy a permission is asked for once only.
+ */
+public final class AskPolicy {
+    /**
+     * Ask now
+     */
+    public static final int ASK = 0;
+    /**
+     * Show the rationale first, then ask, see {@link PermissionEngine#markRationaleShown(String)}
+     */
+    public static final int ASK_WITH_RATIONALE = 1;
+    /**
+     * Denied too recently, ask later
+     */
+    public static final int WAIT = 2;
+    /**
+     * Asked too many times, do not ask anymore
+     */
+    public static final int NEVER = 3;
+
+    private final int maxAsks;
+    private final long backoffMillis;
+    private final boolean rationaleBeforeRetry;
+
+    private AskPolicy(Builder builder) {
+        maxAsks = builder.maxAsks;
+        backoffMillis = builder.backoffMillis;
+        rationaleBeforeRetry = builder.rationaleBeforeRetry;
+    }
+
+    /**
+     * @param history
+     * @param permission
+     * @param nowMillis  wall clock time
+     * @return {@link #ASK}, {@link #ASK_WITH_RATIONALE}, {@link #WAIT} or {@link #NEVER}
+     */
+    public int decide(AskHistory history, String permission, long nowMillis) {
+        return history.decide(this, permission, nowMillis);
+    }
+
+    int decide(int askCount, long lastAskedMillis, long lastDeniedMillis, boolean rationaleShown, long nowMillis) {
+        if (askCount == 0)
+            return ASK;
+        if (askCount >= maxAsks)
+            return NEVER;
+        if (lastDeniedMillis != 0 && backoffMillis > 0) {
+            // doubles with every ask, saturated instead of overflowing
+            int shift = Math.min(askCount - 1, 20);
+            long wait = backoffMillis > Long.MAX_VALUE >> shift ? Long.MAX_VALUE : backoffMillis << shift;
+            if (nowMillis - lastDeniedMillis < wait)
+                return WAIT;
+        }
+        if (rationaleBeforeRetry && !rationaleShown)
+            return ASK_WITH_RATIONALE;
+        return ASK;
+    }
+
+    /**
+     * Collects settings of a policy, by default a permission is asked for once only
+     */
+    public static final class Builder {
+        private int maxAsks = 1;
+        private long backoffMillis;
+        private boolean rationaleBeforeRetry;
+
+        /**
+         * @param maxAsks how many times a permission may be asked for in total
+         * @return
+         */
+        public Builder maxAsks(int maxAsks) {
+            if (maxAsks < 1)
+                throw new IllegalArgumentException("maxAsks must be positive: " + maxAsks);
+            this.maxAsks = maxAsks;
+            return this;
+        }
+
+        /**
+         * @param backoffMillis wait after the first denial, doubled after every next one
+         * @return
+         */
+        public Builder backoffMillis(long backoffMillis) {
+            this.backoffMillis = backoffMillis;
+            return this;
+        }
+
+        /**
+         * @param rationaleBeforeRetry whether the rationale has to be shown before every ask but the first
+         * @return
+         */
+        public Builder rationaleBeforeRetry(boolean rationaleBeforeRetry) {
+            this.rationaleBeforeRetry = rationaleBeforeRetry;
+            return this;
+        }
+
+        public AskPolicy build() {
+            return new AskPolicy(this);
+        }
+    }
+}
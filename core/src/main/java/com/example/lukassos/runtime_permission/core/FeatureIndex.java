@@ -0,0 +1,115 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Features of a screen and the permissions each of them needs, built once and evaluated by
+ * {@link PermissionEngine#evaluate(FeatureIndex)} in one pass.
+ * <p>
+ * Every feature is a mask of registry permissions plus indexes into the permissions outside the registry
+ * all features need together. Evaluation checks each distinct permission once, then decides every feature
+ * by a few mask operations - dozens of features sharing a few permissions cost about the few permissions.
+ */
+public final class FeatureIndex {
+    final String[] names;
+    final long[] masks;
+    final int[][] others;
+    // what the features need together
+    final long mask;
+    final String[] allOthers;
+    private final HashMap<String, Integer> byName;
+
+    private FeatureIndex(Builder builder) {
+        int count = builder.sets.size();
+        names = builder.sets.keySet().toArray(new String[count]);
+        masks = new long[count];
+        others = new int[count][];
+        LinkedHashMap<String, Integer> otherIndexes = new LinkedHashMap<>();
+        long union = 0;
+        byName = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            PermissionSet set = builder.sets.get(names[i]);
+            masks[i] = set.mask;
+            union |= set.mask;
+            others[i] = new int[set.others.length];
+            for (int j = 0; j < set.others.length; j++) {
+                Integer index = otherIndexes.get(set.others[j]);
+                if (index == null) {
+                    index = otherIndexes.size();
+                    otherIndexes.put(set.others[j], index);
+                }
+                others[i][j] = index;
+            }
+            byName.put(names[i], i);
+        }
+        mask = union;
+        allOthers = otherIndexes.keySet().toArray(new String[otherIndexes.size()]);
+    }
+
+    /**
+     * @return number of features, their ids go from 0 in the order they were added
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param feature
+     * @return id of feature, -1 when it is not in the index
+     */
+    public int idOf(String feature) {
+        Integer id = byName.get(feature);
+        return id == null ? -1 : id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return distinct permissions all the features need, checked once per evaluation
+     */
+    public PermissionSet permissions() {
+        return new PermissionSet(mask, allOthers.clone());
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureIndex" + Arrays.toString(names);
+    }
+
+    /**
+     * Collects features, not thread safe
+     */
+    public static final class Builder {
+        private final LinkedHashMap<String, PermissionSet> sets = new LinkedHashMap<>();
+
+        /**
+         * @param feature     name, unique in the index
+         * @param permissions all needed by the feature
+         * @return
+         */
+        public Builder add(String feature, String... permissions) {
+            return add(feature, PermissionSet.of(permissions));
+        }
+
+        /**
+         * @param feature     name, unique in the index
+         * @param permissions all needed by the feature, e.g. generated from {@link NeedsPermissions}
+         * @return
+         */
+        public Builder add(String feature, PermissionSet permissions) {
+            if (sets.containsKey(feature))
+                throw new IllegalArgumentException("feature " + feature + " is in the index already");
+            sets.put(feature, permissions);
+            return this;
+        }
+
+        public FeatureIndex build() {
+            return new FeatureIndex(this);
+        }
+    }
+}
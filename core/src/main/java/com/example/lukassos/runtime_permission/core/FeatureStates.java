@@ -0,0 +1,52 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.BitSet;
+
+/**
+ * States of all the features of a {@link FeatureIndex} at one point in time, as bitsets indexed by feature id
+ */
+public final class FeatureStates {
+    private final BitSet available;
+    private final BitSet blocked;
+
+    FeatureStates(BitSet available, BitSet blocked) {
+        this.available = available;
+        this.blocked = blocked;
+    }
+
+    /**
+     * @param feature id
+     * @return whether all the permissions of feature are granted
+     */
+    public boolean isAvailable(int feature) {
+        return available.get(feature);
+    }
+
+    /**
+     * @param feature id
+     * @return whether some permission of feature is not granted and cannot be asked for - it was asked before
+     * or is missing in the manifest, so a request would not show the dialog
+     */
+    public boolean isBlocked(int feature) {
+        return blocked.get(feature);
+    }
+
+    /**
+     * @return ids of available features, a copy
+     */
+    public BitSet available() {
+        return (BitSet) available.clone();
+    }
+
+    /**
+     * @return ids of blocked features, a copy
+     */
+    public BitSet blocked() {
+        return (BitSet) blocked.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureStates{available=" + available + ", blocked=" + blocked + "}";
+    }
+}
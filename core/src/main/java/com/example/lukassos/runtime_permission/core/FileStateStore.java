@@ -0,0 +1,356 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps asked markers and last requested permissions in a small dedicated binary file.
+ * <p>
+ * Layout: magic, version, {@link PermissionRegistry#layoutHash()}, asked mask, requested mask
+ * (both indexed by the registry), followed by the few permissions not in the registry as UTF strings,
+ * then the {@link AskHistory} records (since version 2, older files are read without it).
+ * The file is read once on first access, then all reads are answered from memory. Every commit
+ * updates the memory at once and writes the whole file (under a kilobyte) to a temporary file renamed
+ * over the old one, so a crash never leaves it half written. Commits setting the requested permissions
+ * are on disk when they return, so a request survives the process dying while the dialog shows,
+ * the other commits are written on a background thread.
+ * A file written by a different registry layout is ignored.
+ */
+public final class FileStateStore implements HistoryStore {
+    private static final int MAGIC = 0x52505354; // RPST
+    private static final int VERSION = 2;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RuntimePermissionsFileStore");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final Object lock = new Object();
+    private boolean loaded;
+    private long asked;
+    private long requested;
+    private final LinkedHashSet<String> otherAsked = new LinkedHashSet<>();
+    private final ArrayList<String> otherRequested = new ArrayList<>();
+    private AskHistory history = new AskHistory();
+
+    // newest commit, older writes still queued are skipped
+    private int version;
+    private Future<?> lastWrite;
+    // one write of the file at once, guards written
+    private final Object writeLock = new Object();
+    private int written;
+
+    /**
+     * @param file where to keep the state, e.g. in Context.getFilesDir()
+     */
+    public FileStateStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return whether the file exists, i.e. whether anything was ever committed
+     */
+    public boolean exists() {
+        synchronized (lock) {
+            return version > 0 || file.exists();
+        }
+    }
+
+    @Override
+    public boolean isAsked(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        synchronized (lock) {
+            load();
+            return bit != 0 ? (asked & bit) != 0 : otherAsked.contains(permission);
+        }
+    }
+
+    @Override
+    public List<String> loadRequested() {
+        synchronized (lock) {
+            load();
+            ArrayList<String> result = new ArrayList<>(Long.bitCount(requested) + otherRequested.size());
+            for (long rest = requested; rest != 0; rest &= rest - 1) {
+                result.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+            }
+            result.addAll(otherRequested);
+            return result;
+        }
+    }
+
+    @Override
+    public Batch edit() {
+        return new FileBatch();
+    }
+
+    @Override
+    public AskHistory loadHistory() {
+        synchronized (lock) {
+            load();
+            return history.copy();
+        }
+    }
+
+    @Override
+    public void setHistory(AskHistory history) {
+        AskHistory copy = history.copy();
+        synchronized (lock) {
+            load();
+            this.history = copy;
+        }
+    }
+
+    /**
+     * Blocks until all the batches committed so far are on disk
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the writes did not finish in time
+     */
+    public boolean awaitPendingWrites(long timeout, TimeUnit unit) {
+        Future<?> pending;
+        synchronized (lock) {
+            pending = lastWrite;
+        }
+        if (pending == null)
+            return true;
+        try {
+            pending.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // the write itself failed, there is nothing more to wait for
+            return true;
+        }
+    }
+
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != MAGIC)
+                return;
+            byte fileVersion = in.readByte();
+            if (fileVersion < 1 || fileVersion > VERSION || in.readInt() != PermissionRegistry.layoutHash())
+                return;
+            long askedMask = in.readLong();
+            long requestedMask = in.readLong();
+            ArrayList<String> askedOthers = readStrings(in);
+            ArrayList<String> requestedOthers = readStrings(in);
+            if (fileVersion >= 2)
+                history = AskHistory.readFrom(in);
+            asked = askedMask;
+            requested = requestedMask;
+            otherAsked.addAll(askedOthers);
+            otherRequested.addAll(requestedOthers);
+        } catch (IOException e) {
+            // corrupted, start over
+        } finally {
+            close(stream);
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(PermissionRegistry.layoutHash());
+        out.writeLong(asked);
+        out.writeLong(requested);
+        writeStrings(out, otherAsked);
+        writeStrings(out, otherRequested);
+        history.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param writeVersion
+     * @param data
+     * @param skipOutdated whether to skip the write when a newer commit will be written anyway
+     * @throws IOException
+     */
+    private void write(int writeVersion, byte[] data, boolean skipOutdated) throws IOException {
+        synchronized (writeLock) {
+            if (writeVersion <= written)
+                return;
+            if (skipOutdated) {
+                synchronized (lock) {
+                    if (writeVersion != version)
+                        return;
+                }
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                close(out);
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            written = writeVersion;
+        }
+    }
+
+    private static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        ArrayList<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(in.readUTF());
+        }
+        return result;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeShort(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+    }
+
+    /**
+     * Changes collected for one atomic write
+     */
+    private final class FileBatch implements Batch {
+        private long ask;
+        private long clear;
+        private final LinkedHashSet<String> othersToAsk = new LinkedHashSet<>();
+        private final LinkedHashSet<String> othersToClear = new LinkedHashSet<>();
+        private Collection<String> requestedPermissions;
+
+        @Override
+        public Batch markAsAsked(String permission) {
+            long bit = PermissionRegistry.bitOf(permission);
+            if (bit != 0) {
+                ask |= bit;
+                clear &= ~bit;
+            } else {
+                othersToAsk.add(permission);
+                othersToClear.remove(permission);
+            }
+            return this;
+        }
+
+        @Override
+        public Batch clearMarkAsAsked(String permission) {
+            long bit = PermissionRegistry.bitOf(permission);
+            if (bit != 0) {
+                clear |= bit;
+                ask &= ~bit;
+            } else {
+                othersToClear.add(permission);
+                othersToAsk.remove(permission);
+            }
+            return this;
+        }
+
+        @Override
+        public Batch setRequested(Collection<String> permissions) {
+            requestedPermissions = new ArrayList<>(permissions);
+            return this;
+        }
+
+        /**
+         * Applies the changes in memory and queues the write of the whole file, or writes it at once
+         * when the requested permissions were set
+         */
+        @Override
+        public void commit() {
+            final int writeVersion;
+            final byte[] data;
+            synchronized (lock) {
+                load();
+                asked = (asked | ask) & ~clear;
+                otherAsked.addAll(othersToAsk);
+                otherAsked.removeAll(othersToClear);
+                if (requestedPermissions != null) {
+                    requested = 0;
+                    otherRequested.clear();
+                    for (String perm : requestedPermissions) {
+                        long bit = PermissionRegistry.bitOf(perm);
+                        if (bit != 0) {
+                            requested |= bit;
+                        } else if (!otherRequested.contains(perm)) {
+                            otherRequested.add(perm);
+                        }
+                    }
+                }
+
+                writeVersion = ++version;
+                try {
+                    data = encode();
+                } catch (IOException e) {
+                    // in memory stream does not fail
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (requestedPermissions != null) {
+                try {
+                    // the dialog comes next, the process may die before the result
+                    write(writeVersion, data, false);
+                    return;
+                } catch (IOException e) {
+                    // tried once more in the background
+                }
+            }
+            synchronized (lock) {
+                lastWrite = WRITER.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            write(writeVersion, data, true);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Cannot write " + file, e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Store which also keeps the {@link AskHistory}. The engine loads it once and hands it back
+ * after every change, it is written together with the batch committed next.
+ */
+public interface HistoryStore extends PermissionStateStore {
+    /**
+     * @return history stored, empty when there is none, the caller may change it freely
+     */
+    AskHistory loadHistory();
+
+    /**
+     * @param history to write with the next commit, the store keeps a copy
+     */
+    void setHistory(AskHistory history);
+}
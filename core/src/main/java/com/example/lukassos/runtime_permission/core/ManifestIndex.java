@@ -0,0 +1,112 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permissions the app declares in its manifest, built once from PackageInfo.requestedPermissions.
+ * <p>
+ * Registry permissions are kept as one mask, so whether a permission is declared is answered in O(1).
+ * Undeclared permissions can never be granted - the engine rejects them without asking, see
+ * {@link PermissionEngine#setManifest(ManifestIndex)}.
+ */
+public final class ManifestIndex {
+    // permissions outside the registry remembered as reported at most, the rest counts as reported
+    private static final int MAX_REPORTED_OTHERS = 64;
+
+    final long declared;
+    private final HashSet<String> declaredOthers = new HashSet<>();
+
+    // undeclared permissions already reported, see diagnose
+    private final AtomicLong reported = new AtomicLong();
+    private final HashSet<String> reportedOthers = new HashSet<>();
+
+    /**
+     * @param requestedPermissions as in PackageInfo, may be null when the app declares none
+     */
+    public ManifestIndex(String[] requestedPermissions) {
+        long mask = 0;
+        if (requestedPermissions != null) {
+            for (String perm : requestedPermissions) {
+                long bit = PermissionRegistry.bitOf(perm);
+                if (bit != 0)
+                    mask |= bit;
+                else
+                    declaredOthers.add(perm);
+            }
+        }
+        declared = mask;
+    }
+
+    public boolean isDeclared(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        return bit != 0 ? (declared & bit) != 0 : declaredOthers.contains(permission);
+    }
+
+    /**
+     * @param set
+     * @return whether all the permissions of set are declared
+     */
+    public boolean allDeclared(PermissionSet set) {
+        if ((set.mask & ~declared) != 0)
+            return false;
+        for (String other : set.others) {
+            if (!declaredOthers.contains(other))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param sdk
+     * @return declared registry permissions which are runtime permissions on sdk, e.g. to prewarm
+     */
+    public PermissionSet declaredRuntime(int sdk) {
+        return new PermissionSet(declared & PermissionRegistry.runtimeMask(sdk), new String[0]);
+    }
+
+    /**
+     * @param permissions
+     * @return those not declared
+     */
+    public ArrayList<String> undeclared(List<String> permissions) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String perm : permissions) {
+            if (!isDeclared(perm))
+                result.add(perm);
+        }
+        return result;
+    }
+
+    /**
+     * @param undeclared e.g. {@link RequestPlan#getUndeclared()}
+     * @return message telling what to add to the manifest, only when some of these permissions was not reported
+     * before, null otherwise or when there is nothing to report
+     */
+    public String diagnose(List<String> undeclared) {
+        boolean fresh = false;
+        for (String perm : undeclared) {
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0) {
+                fresh |= markReported(bit);
+            } else {
+                synchronized (reportedOthers) {
+                    fresh |= reportedOthers.size() < MAX_REPORTED_OTHERS && reportedOthers.add(perm);
+                }
+            }
+        }
+        return fresh ? "Permissions requested are missing in manifest! Add following : " + undeclared : null;
+    }
+
+    private boolean markReported(long bit) {
+        while (true) {
+            long current = reported.get();
+            if ((current & bit) != 0)
+                return false;
+            if (reported.compareAndSet(current, current | bit))
+                return true;
+        }
+    }
+}
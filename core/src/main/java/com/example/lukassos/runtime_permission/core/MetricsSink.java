@@ -0,0 +1,11 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Destination of permission metrics, e.g. logcat, analytics or a test assertion
+ */
+public interface MetricsSink {
+    /**
+     * @param snapshot counters at the time of export, owned by the sink
+     */
+    void export(PermissionMetrics.Snapshot snapshot);
+}
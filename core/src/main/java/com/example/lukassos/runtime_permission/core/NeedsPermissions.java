@@ -0,0 +1,33 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Permissions a feature needs, read at build time by the annotation processor of module processor.
+ * <p>
+ * For every class with annotated members it generates class ClassNamePermissions in the same package, holding
+ * {@link PermissionSet} constants with masks computed at build time, set(code) mapping codes to them,
+ * codeOf(set) mapping them back and, for annotated methods, dispatch(target, code) calling the method of the code.
+ * Request codes of the system dialog are not codes of features, they are assigned at runtime, so that
+ * concurrent requests can be joined, see {@link PermissionEngine#resolve(int)}. Conflicting codes,
+ * empty permission lists and methods with parameters are compile errors.
+ * <ul>
+ * <li>on a static final int constant (e.g. a view id), the constant value is the code</li>
+ * <li>on a method without parameters (feature entry point), the code is {@link #code()}</li>
+ * </ul>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface NeedsPermissions {
+    int NO_CODE = Integer.MIN_VALUE;
+
+    String[] value();
+
+    /**
+     * @return code of the feature, required on methods, not allowed on constants
+     */
+    int code() default NO_CODE;
+}
@@ -0,0 +1,91 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Request shown in the system dialog, waiting for its result.
+ * <p>
+ * Several callers may wait for one request when their requests were coalesced, each of them
+ * with its own plan and callback.
+ *
+ * @param <C> type of callback waiting for the result
+ */
+public final class PendingRequest<C> {
+    final int requestCode;
+    final String[] permissions;
+    final RequestQueue<C> queue;
+    final ArrayList<RequestPlan> plans = new ArrayList<>(1);
+    final ArrayList<C> callbacks = new ArrayList<>(1);
+    // when the request was registered, for PermissionMetrics.PHASE_DIALOG
+    final long started = PermissionMetrics.start();
+
+    // permissions of this request for quick lookup
+    private final long mask;
+    private HashSet<String> others;
+
+    PendingRequest(int requestCode, String[] permissions, RequestQueue<C> queue) {
+        this.requestCode = requestCode;
+        this.permissions = permissions;
+        this.queue = queue;
+        long mask = 0;
+        for (String perm : permissions) {
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0) {
+                mask |= bit;
+            } else {
+                if (others == null)
+                    others = new HashSet<>();
+                others.add(perm);
+            }
+        }
+        this.mask = mask;
+    }
+
+    void addCaller(RequestPlan plan, C callback) {
+        plans.add(plan);
+        callbacks.add(callback);
+    }
+
+    /**
+     * @param permission
+     * @return whether permission goes to the system dialog with this request
+     */
+    boolean contains(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0)
+            return (mask & bit) != 0;
+        return others != null && others.contains(permission);
+    }
+
+    public int getRequestCode() {
+        return requestCode;
+    }
+
+    public String[] getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * @return how many callers wait for this request, 0 when it was restored after process restart
+     */
+    public int getCallerCount() {
+        return callbacks.size();
+    }
+
+    /**
+     * @param caller
+     * @return callback passed along with the request, may be null
+     */
+    public C getCallback(int caller) {
+        return callbacks.get(caller);
+    }
+
+    /**
+     * @param caller
+     * @return plan the caller requested by, null if it did not plan its request
+     */
+    public RequestPlan getPlan(int caller) {
+        return plans.get(caller);
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Source of truth about currently granted permissions, on Android it asks PackageManager
+ */
+public interface PermissionChecker {
+    /**
+     * Grant result value of granted permission, same as PackageManager.PERMISSION_GRANTED
+     */
+    int GRANTED = 0;
+
+    /**
+     * @param permission
+     * @return whether permission is granted right now
+     */
+    boolean isGranted(String permission);
+}
@@ -0,0 +1,1186 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decision logic of runtime permission requests, free of any Android dependency.
+ * <p>
+ * It classifies wanted permissions, builds {@link PermissionStatus} and keeps the bookkeeping of requests
+ * in flight, coalescing requests of the same owner while its system dialog is shown. Grant states come from {@link PermissionChecker}, asked markers from {@link PermissionStateStore},
+ * both are cached in memory until {@link #invalidate()}. Every phase of a request is measured in {@link #metrics()}.
+ *
+ * @param <C> type of callbacks waiting for request results
+ */
+public class PermissionEngine<C> {
+    private final PermissionChecker checker;
+    private final PermissionStateStore store;
+    // store other processes write too, null when it is only ours
+    private final VersionedStateStore shared;
+    // store keeping the ask history, null when it is kept in memory only
+    private final HistoryStore historyStore;
+    private final Object historyLock = new Object();
+    private AskHistory history;
+    private volatile AskPolicy policy;
+    private final PermissionStateCache cache = new PermissionStateCache();
+    private final RequestRegistry<C> registry = new RequestRegistry<>();
+    private final WeakHashMap<Object, RequestQueue<C>> queues = new WeakHashMap<>();
+    private final PermissionMetrics metrics = new PermissionMetrics();
+    private final CopyOnWriteArrayList<PermissionListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile ManifestIndex manifest;
+    private volatile PermissionJournal journal;
+
+    public PermissionEngine(PermissionChecker checker, PermissionStateStore store) {
+        this.checker = checker;
+        this.store = store;
+        this.shared = store instanceof VersionedStateStore ? (VersionedStateStore) store : null;
+        this.historyStore = store instanceof HistoryStore ? (HistoryStore) store : null;
+    }
+
+    /**
+     * method that will return whether the permission is accepted.
+     *
+     * @param permission
+     * @return
+     */
+    public boolean hasPermission(String permission) {
+        int cached = cache.granted(permission);
+        if (cached != PermissionStateCache.UNKNOWN)
+            return cached == PermissionStateCache.YES;
+        int epoch = cache.epoch();
+        boolean granted = checker.isGranted(permission);
+        cache.putGranted(permission, granted, epoch);
+        return granted;
+    }
+
+    /**
+     * @param set
+     * @return whether all the permissions of set are granted, checks only those not cached yet
+     */
+    public boolean allGranted(PermissionSet set) {
+        int cached = cache.grantedAll(set.mask);
+        if (cached == PermissionStateCache.NO)
+            return false;
+        if (cached == PermissionStateCache.UNKNOWN) {
+            for (long rest = set.mask; rest != 0; rest &= rest - 1) {
+                if (!hasPermission(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest))))
+                    return false;
+            }
+        }
+        for (String other : set.others) {
+            if (!hasPermission(other))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads asked markers and grant states of set into the cache, meant to run on a background thread
+     * before the first request
+     *
+     * @param set
+     */
+    public void prewarm(PermissionSet set) {
+        long start = PermissionMetrics.start();
+        history();
+        for (String perm : set.toList()) {
+            shouldWeAsk(perm);
+            hasPermission(perm);
+        }
+        metrics.record(PermissionMetrics.PHASE_PRE_CHECK, start);
+    }
+
+    /**
+     * Evaluates all the features of index against one snapshot of permission states - every distinct permission
+     * is checked once (cached ones not at all), then each feature takes a few mask operations
+     *
+     * @param index
+     * @return available and blocked features
+     */
+    public FeatureStates evaluate(FeatureIndex index) {
+        long start = PermissionMetrics.start();
+        ManifestIndex manifest = this.manifest;
+        long wanted = index.mask;
+        // undeclared can never be granted
+        long blocked = manifest == null ? 0 : wanted & ~manifest.declared;
+        long granted = 0;
+        int grantedGroups = 0;
+        for (long rest = wanted & ~blocked; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            if (hasPermission(PermissionRegistry.nameOf(i))) {
+                granted |= 1L << i;
+                if (PermissionRegistry.isGrantedWithGroup(i))
+                    grantedGroups |= 1 << PermissionRegistry.groupOf(i);
+            }
+        }
+        for (long rest = wanted & ~blocked & ~granted; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            // members of a group with some permission granted are granted without a prompt, see plan
+            boolean silent = PermissionRegistry.isGrantedWithGroup(i)
+                    && (grantedGroups & 1 << PermissionRegistry.groupOf(i)) != 0;
+            if (!silent && !shouldWeAsk(PermissionRegistry.nameOf(i)))
+                blocked |= 1L << i;
+        }
+        String[] others = index.allOthers;
+        boolean[] otherGranted = new boolean[others.length];
+        boolean[] otherBlocked = new boolean[others.length];
+        for (int i = 0; i < others.length; i++) {
+            if (manifest != null && !manifest.isDeclared(others[i]))
+                otherBlocked[i] = true;
+            else if (hasPermission(others[i]))
+                otherGranted[i] = true;
+            else
+                otherBlocked[i] = !shouldWeAsk(others[i]);
+        }
+
+        BitSet available = new BitSet(index.size());
+        BitSet blockedFeatures = new BitSet(index.size());
+        for (int feature = 0; feature < index.size(); feature++) {
+            long mask = index.masks[feature];
+            boolean all = (mask & ~granted) == 0;
+            boolean none = (mask & blocked) == 0;
+            for (int other : index.others[feature]) {
+                all &= otherGranted[other];
+                none &= !otherBlocked[other];
+            }
+            if (all)
+                available.set(feature);
+            else if (!none)
+                blockedFeatures.set(feature);
+        }
+        metrics.record(PermissionMetrics.PHASE_PRE_CHECK, start);
+        return new FeatureStates(available, blockedFeatures);
+    }
+
+    /**
+     * @param set
+     * @return handle answering {@link #allGranted(PermissionSet)} for set, keep it for repeated checks
+     */
+    public PermissionGuard guard(PermissionSet set) {
+        return new PermissionGuard(this, set);
+    }
+
+    /**
+     * method to determine whether we have asked
+     * for this permission before.. if we have, we do not want to ask again.
+     * They either rejected us or later removed the permission.
+     * With a policy wanting a rationale first it is true, but plans keep the permission back until the rationale
+     * was shown, see {@link RequestPlan#getNeedsRationale()}.
+     *
+     * @param permission
+     * @return
+     */
+    public boolean shouldWeAsk(String permission) {
+        AskPolicy policy = this.policy;
+        if (policy != null) {
+            int decision = decide(policy, permission);
+            return decision == AskPolicy.ASK || decision == AskPolicy.ASK_WITH_RATIONALE;
+        }
+        return !isMarkedAsAsked(permission);
+    }
+
+    /**
+     * @param permission
+     * @return decision of the ask policy, see {@link AskPolicy#ASK} and the others, without a policy
+     * {@link AskPolicy#NEVER} for permissions asked for before and {@link AskPolicy#ASK} for the others
+     */
+    public int decide(String permission) {
+        AskPolicy policy = this.policy;
+        if (policy == null)
+            return isMarkedAsAsked(permission) ? AskPolicy.NEVER : AskPolicy.ASK;
+        return decide(policy, permission);
+    }
+
+    private int decide(AskPolicy policy, String permission) {
+        AskHistory history = history();
+        long now = System.currentTimeMillis();
+        // asked for before the history was kept
+        if (history.askCount(permission) == 0 && isMarkedAsAsked(permission))
+            return policy.decide(1, 0, 0, false, now);
+        return policy.decide(history, permission, now);
+    }
+
+    private boolean isMarkedAsAsked(String permission) {
+        if (shared != null)
+            cache.syncAsked(shared.version());
+        int cached = cache.asked(permission);
+        if (cached != PermissionStateCache.UNKNOWN)
+            return cached == PermissionStateCache.YES;
+        boolean asked = store.isAsked(permission);
+        cache.putAsked(permission, asked);
+        return asked;
+    }
+
+    /**
+     * This method is used to determine the permissions we do not have accepted yet and ones that we have not already
+     * bugged the user about.  This comes in handle when you are asking for multiple permissions at once.
+     *
+     * @param wanted
+     * @return
+     */
+    public ArrayList<String> findUnAskedPermissions(List<String> wanted) {
+        ArrayList<String> result = new ArrayList<String>();
+
+        for (String perm : wanted) {
+            if (!hasPermission(perm) && decide(perm) == AskPolicy.ASK) {
+                result.add(perm);
+            }
+        }
+
+        PermissionJournal journal = this.journal;
+        if (journal != null)
+            journal.recordAll(result, PermissionJournal.DECISION_TO_REQUEST, PermissionJournal.NO_REQUEST);
+        return result;
+    }
+
+    /**
+     * this will return us all the permissions we have previously asked for but
+     * currently do not have permission to use. This may be because they declined us
+     * or later revoked our permission. This becomes useful when you want to tell the user
+     * what permissions they declined and why they cannot use a feature.
+     *
+     * @param wanted
+     * @return
+     */
+    public ArrayList<String> findRejectedPermissions(List<String> wanted) {
+        ArrayList<String> result = new ArrayList<String>();
+
+        for (String perm : wanted) {
+            if (!hasPermission(perm) && decide(perm) != AskPolicy.ASK) {
+                result.add(perm);
+            }
+        }
+
+        PermissionJournal journal = this.journal;
+        if (journal != null)
+            journal.recordAll(result, PermissionJournal.DECISION_REJECTED, PermissionJournal.NO_REQUEST);
+        return result;
+    }
+
+    /**
+     * Plans a request of wanted permissions - every distinct permission is checked once, members of
+     * permission groups with some permission already granted are requested even if asked before,
+     * because the system grants them without a prompt. Permissions to request are ordered by group,
+     * so the user sees the smallest possible number of prompts.
+     *
+     * @param wanted may contain duplicates
+     * @return
+     */
+    public RequestPlan plan(List<String> wanted) {
+        long start = PermissionMetrics.start();
+        long mask = 0;
+        ArrayList<String> others = null;
+        HashSet<String> seenOthers = null;
+        for (String perm : wanted) {
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0) {
+                mask |= bit;
+            } else {
+                if (seenOthers == null) {
+                    seenOthers = new HashSet<>();
+                    others = new ArrayList<>();
+                }
+                if (seenOthers.add(perm))
+                    others.add(perm);
+            }
+        }
+        return plan(mask, others, start);
+    }
+
+    /**
+     * Same as {@link #plan(List)} for a compiled set, registry permissions are not looked up by name at all
+     *
+     * @param set
+     * @return
+     */
+    public RequestPlan plan(PermissionSet set) {
+        return plan(set.mask, set.others.length == 0 ? null : Arrays.asList(set.others), PermissionMetrics.start());
+    }
+
+    private RequestPlan plan(long wanted, List<String> others, long start) {
+        RequestPlan plan = new RequestPlan();
+        ManifestIndex manifest = this.manifest;
+        if (manifest != null) {
+            for (long rest = wanted & ~manifest.declared; rest != 0; rest &= rest - 1) {
+                plan.undeclared.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+            }
+            wanted &= manifest.declared;
+            if (others != null) {
+                ArrayList<String> undeclaredOthers = manifest.undeclared(others);
+                if (!undeclaredOthers.isEmpty()) {
+                    plan.undeclared.addAll(undeclaredOthers);
+                    others = new ArrayList<>(others);
+                    others.removeAll(undeclaredOthers);
+                }
+            }
+        }
+        long notGranted = 0;
+        ArrayList<String> othersNotGranted = null;
+        int grantedGroups = 0;
+
+        for (long rest = wanted; rest != 0; rest &= rest - 1) {
+            int index = Long.numberOfTrailingZeros(rest);
+            String perm = PermissionRegistry.nameOf(index);
+            if (hasPermission(perm)) {
+                plan.granted.add(perm);
+                if (PermissionRegistry.isGrantedWithGroup(index))
+                    grantedGroups |= 1 << PermissionRegistry.groupOf(index);
+            } else {
+                notGranted |= 1L << index;
+            }
+        }
+        if (others != null) {
+            for (String perm : others) {
+                if (hasPermission(perm)) {
+                    plan.granted.add(perm);
+                } else {
+                    if (othersNotGranted == null)
+                        othersNotGranted = new ArrayList<>();
+                    othersNotGranted.add(perm);
+                }
+            }
+        }
+
+        // index order is group order
+        int promptGroups = 0;
+        int alonePrompts = 0;
+        for (long rest = notGranted; rest != 0; rest &= rest - 1) {
+            int index = Long.numberOfTrailingZeros(rest);
+            String perm = PermissionRegistry.nameOf(index);
+            int groupBit = 1 << PermissionRegistry.groupOf(index);
+            boolean withGroup = PermissionRegistry.isGrantedWithGroup(index);
+            if (withGroup && (grantedGroups & groupBit) != 0) {
+                // granted silently by the system
+                plan.toRequest.add(perm);
+                plan.silent |= 1L << index;
+                continue;
+            }
+            int decision = decide(perm);
+            if (decision == AskPolicy.ASK) {
+                plan.toRequest.add(perm);
+                if (withGroup)
+                    promptGroups |= groupBit;
+                else
+                    alonePrompts++;
+            } else {
+                plan.rejected.add(perm);
+                if (decision == AskPolicy.ASK_WITH_RATIONALE)
+                    plan.needsRationale.add(perm);
+            }
+        }
+        plan.prompts = Integer.bitCount(promptGroups) + alonePrompts;
+        if (othersNotGranted != null) {
+            for (String perm : othersNotGranted) {
+                int decision = decide(perm);
+                if (decision == AskPolicy.ASK) {
+                    plan.toRequest.add(perm);
+                    plan.prompts++;
+                } else {
+                    plan.rejected.add(perm);
+                    if (decision == AskPolicy.ASK_WITH_RATIONALE)
+                        plan.needsRationale.add(perm);
+                }
+            }
+        }
+        metrics.record(PermissionMetrics.PHASE_PRE_CHECK, start);
+        PermissionJournal journal = this.journal;
+        if (journal != null) {
+            journal.recordAll(plan.granted, PermissionJournal.DECISION_GRANTED, PermissionJournal.NO_REQUEST);
+            journal.recordAll(plan.toRequest, PermissionJournal.DECISION_TO_REQUEST, PermissionJournal.NO_REQUEST);
+            journal.recordAll(plan.rejected, PermissionJournal.DECISION_REJECTED, PermissionJournal.NO_REQUEST);
+            journal.recordAll(plan.undeclared, PermissionJournal.DECISION_UNDECLARED, PermissionJournal.NO_REQUEST);
+        }
+        return plan;
+    }
+
+    /**
+     * Same as {@link #plan(List)} for a request of owner, permissions asked for by its request in flight
+     * are not rejected yet, they stay to request, see {@link #submit(Object, RequestPlan, Object)}
+     *
+     * @param owner
+     * @param wanted
+     * @return
+     */
+    public RequestPlan plan(Object owner, List<String> wanted) {
+        return withInFlight(owner, plan(wanted));
+    }
+
+    /**
+     * Same as {@link #plan(Object, List)} for a compiled set
+     *
+     * @param owner
+     * @param set
+     * @return
+     */
+    public RequestPlan plan(Object owner, PermissionSet set) {
+        return withInFlight(owner, plan(set));
+    }
+
+    private RequestPlan withInFlight(Object owner, RequestPlan plan) {
+        if (plan.rejected.isEmpty())
+            return plan;
+        synchronized (queues) {
+            RequestQueue<C> queue = queues.get(owner);
+            PendingRequest<C> inFlight = queue == null ? null : queue.inFlight;
+            if (inFlight == null || !registry.contains(inFlight))
+                return plan;
+            for (Iterator<String> it = plan.rejected.iterator(); it.hasNext(); ) {
+                String perm = it.next();
+                if (inFlight.contains(perm)) {
+                    it.remove();
+                    plan.needsRationale.remove(perm);
+                    plan.toRequest.add(perm);
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param manifest permissions declared by the app, undeclared ones are rejected by {@link #plan(List)}
+     *                 without any check, null to check all of them
+     */
+    public void setManifest(ManifestIndex manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * @return manifest index, null when not known
+     */
+    public ManifestIndex manifest() {
+        return manifest;
+    }
+
+    /**
+     * Status of permissions before runtime permissions (pre Marshmallow) - whatever the manifest declares
+     * was granted at install time, nothing else can be. Neither checker nor store is touched.
+     *
+     * @param wanted
+     * @return
+     * @throws IllegalStateException when the manifest is not known
+     */
+    public PermissionStatus installTimeStatus(List<String> wanted) {
+        ManifestIndex manifest = requireManifest();
+        PermissionStatus.Builder status = new PermissionStatus.Builder();
+        for (String perm : wanted) {
+            if (manifest.isDeclared(perm)) {
+                status.addGranted(perm);
+            } else {
+                status.addDenied(perm);
+            }
+        }
+        return status.build();
+    }
+
+    /**
+     * Same as {@link #installTimeStatus(List)} for a compiled set
+     *
+     * @param set
+     * @return
+     */
+    public PermissionStatus installTimeStatus(PermissionSet set) {
+        ManifestIndex manifest = requireManifest();
+        PermissionStatus.Builder status = new PermissionStatus.Builder()
+                .addMasks(set.mask & manifest.declared, set.mask & ~manifest.declared);
+        for (String other : set.others) {
+            if (manifest.isDeclared(other)) {
+                status.addGranted(other);
+            } else {
+                status.addDenied(other);
+            }
+        }
+        // all granted is interned, repeated requests get the same instance
+        return status.build();
+    }
+
+    private ManifestIndex requireManifest() {
+        ManifestIndex manifest = this.manifest;
+        if (manifest == null)
+            throw new IllegalStateException("Manifest index is not set");
+        return manifest;
+    }
+
+    /**
+     * @param permissions
+     * @return status with granted permissions in granted, all the others in denied
+     */
+    public PermissionStatus check(List<String> permissions) {
+        long start = PermissionMetrics.start();
+        PermissionStatus.Builder status = new PermissionStatus.Builder();
+        for (String perm : permissions) {
+            if (hasPermission(perm)) {
+                status.addGranted(perm);
+            } else {
+                status.addDenied(perm);
+            }
+        }
+        metrics.record(PermissionMetrics.PHASE_PRE_CHECK, start);
+        return status.build();
+    }
+
+    /**
+     * Marks permissions as asked and remembers them as the last requested ones, all in one write,
+     * then registers the request waiting for the system dialog
+     *
+     * @param permissions going to the system dialog
+     * @param callback    waiting for the result, may be null
+     * @return request code to pass to requestPermissions
+     */
+    public int beginRequest(List<String> permissions, C callback) {
+        return beginRequest(permissions, null, callback);
+    }
+
+    /**
+     * Same as {@link #beginRequest(List, Object)} for permissions to request of plan,
+     * the result will be expanded to all the permissions the plan was made for
+     *
+     * @param plan
+     * @param callback
+     * @return request code to pass to requestPermissions
+     */
+    public int beginRequest(RequestPlan plan, C callback) {
+        return beginRequest(plan.toRequest, plan, callback);
+    }
+
+    private int beginRequest(List<String> permissions, RequestPlan plan, C callback) {
+        PendingRequest<C> request = begin(permissions, plan == null ? 0 : plan.silent, null);
+        request.addCaller(plan, callback);
+        return request.requestCode;
+    }
+
+    /**
+     * @param silent mask of permissions granted silently along with their group, not shown to the user
+     */
+    private PendingRequest<C> begin(List<String> permissions, long silent, RequestQueue<C> queue) {
+        long start = PermissionMetrics.start();
+        PermissionStateStore.Batch batch = store.edit();
+        for (String perm : permissions) {
+            cache.putAsked(perm, true);
+            batch.markAsAsked(perm);
+        }
+        // saved before the dialog is shown, so the result can be verified even after process restart
+        batch.setRequested(permissions);
+        AskHistory history = history();
+        history.recordAsked(permissions, silent, System.currentTimeMillis());
+        keep(history);
+        batch.commit();
+        metrics.record(PermissionMetrics.PHASE_PERSIST, start);
+
+        PendingRequest<C> request = registry.register(permissions.toArray(new String[permissions.size()]), queue);
+        PermissionJournal journal = this.journal;
+        if (journal != null)
+            journal.recordAll(permissions, PermissionJournal.DECISION_MARKED_ASKED, request.requestCode);
+        return request;
+    }
+
+    /**
+     * Same as {@link #beginRequest(RequestPlan, Object)}, but only one request of owner is in flight at once.
+     * While it is, the caller either joins it, when all its permissions are already being asked for,
+     * or waits for the next request together with other callers, asking only for permissions not in flight.
+     *
+     * @param owner    the one showing the system dialog, an Activity on Android, held weakly
+     * @param plan     with some permissions to request
+     * @param callback waiting for the result, may be null
+     * @return request to pass to requestPermissions, or null when the caller joined the request in flight
+     * or waits for the next one, see {@link #next(PendingRequest)}
+     */
+    public PendingRequest<C> submit(Object owner, RequestPlan plan, C callback) {
+        synchronized (queues) {
+            RequestQueue<C> queue = queues.get(owner);
+            if (queue == null) {
+                queue = new RequestQueue<>();
+                queues.put(owner, queue);
+            }
+            PendingRequest<C> inFlight = queue.inFlight;
+            if (inFlight == null || !registry.contains(inFlight)) {
+                // nothing in flight, or its result came already (or never will)
+                queue.add(plan, callback, null);
+                return start(queue);
+            }
+            if (!queue.add(plan, callback, inFlight)) {
+                inFlight.addCaller(plan, callback);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Finishes completed request of its owner and starts the next one, if some callers wait for it
+     *
+     * @param completed request whose result was just verified
+     * @return request to pass to requestPermissions, or null when no one waits
+     */
+    public PendingRequest<C> next(PendingRequest<C> completed) {
+        RequestQueue<C> queue = completed.queue;
+        if (queue == null)
+            return null;
+        synchronized (queues) {
+            // the owner may have submitted a new request while the result was delivered
+            if (queue.inFlight != completed)
+                return null;
+            queue.inFlight = null;
+            if (!queue.isWaiting())
+                return null;
+            return start(queue);
+        }
+    }
+
+    /**
+     * @param owner
+     * @return whether owner has a request in flight or callers waiting for the next one
+     */
+    public boolean hasRequests(Object owner) {
+        synchronized (queues) {
+            RequestQueue<C> queue = queues.get(owner);
+            return queue != null && (queue.isWaiting() || (queue.inFlight != null && registry.contains(queue.inFlight)));
+        }
+    }
+
+    /**
+     * Hands the requests of owner, in flight and waiting, over to newOwner together with its callback, e.g. from
+     * an Activity destroyed by a configuration change to a holder and from the holder to the recreated Activity.
+     * Afterwards nothing of the engine refers to owner or from anymore, requests newOwner had are dropped.
+     *
+     * @param owner
+     * @param newOwner
+     * @param from     callback of owner to replace, may be null
+     * @param to       callback taking over the results of from
+     * @return false when owner had no requests
+     */
+    public boolean handOver(Object owner, Object newOwner, C from, C to) {
+        synchronized (queues) {
+            RequestQueue<C> queue = queues.remove(owner);
+            if (queue == null)
+                return false;
+            if (from != null)
+                queue.replace(from, to);
+            queues.put(newOwner, queue);
+            return true;
+        }
+    }
+
+    private PendingRequest<C> start(RequestQueue<C> queue) {
+        PendingRequest<C> request = begin(queue.permissions(), queue.silent(), queue);
+        queue.moveTo(request);
+        queue.inFlight = request;
+        return request;
+    }
+
+    /**
+     * Marks permissions as asked in one write, without any request
+     *
+     * @param permissions
+     */
+    public void markAsAsked(List<String> permissions) {
+        long start = PermissionMetrics.start();
+        PermissionStateStore.Batch batch = store.edit();
+        for (String perm : permissions) {
+            cache.putAsked(perm, true);
+            batch.markAsAsked(perm);
+        }
+        AskHistory history = history();
+        history.recordAsked(permissions, 0, System.currentTimeMillis());
+        keep(history);
+        batch.commit();
+        metrics.record(PermissionMetrics.PHASE_PERSIST, start);
+        PermissionJournal journal = this.journal;
+        if (journal != null)
+            journal.recordAll(permissions, PermissionJournal.DECISION_MARKED_ASKED, PermissionJournal.NO_REQUEST);
+    }
+
+    /**
+     * We may want to ask the user again at their request.. Let's clear the
+     * marked as seen marker for that permission.
+     *
+     * @param permission
+     */
+    public void clearMarkAsAsked(String permission) {
+        clearMarkAsAsked(Collections.singletonList(permission));
+    }
+
+    /**
+     * Same as {@link #clearMarkAsAsked(String)} for all the permissions in one write, their ask history is reset too
+     *
+     * @param permissions
+     */
+    public void clearMarkAsAsked(List<String> permissions) {
+        long start = PermissionMetrics.start();
+        PermissionStateStore.Batch batch = store.edit();
+        for (String perm : permissions) {
+            cache.putAsked(perm, false);
+            batch.clearMarkAsAsked(perm);
+        }
+        AskHistory history = history();
+        history.clear(permissions);
+        keep(history);
+        batch.commit();
+        metrics.record(PermissionMetrics.PHASE_PERSIST, start);
+        PermissionJournal journal = this.journal;
+        if (journal != null)
+            journal.recordAll(permissions, PermissionJournal.DECISION_CLEARED, PermissionJournal.NO_REQUEST);
+    }
+
+    /**
+     * Notes that the rationale of permission was shown to the user, see {@link AskPolicy#ASK_WITH_RATIONALE}
+     *
+     * @param permission
+     */
+    public void markRationaleShown(String permission) {
+        AskHistory history = history();
+        history.recordRationale(permission);
+        save(history);
+    }
+
+    /**
+     * Makes shouldWeAsk and plans follow policy, null returns to asking for every permission once
+     *
+     * @param policy
+     * @throws IllegalStateException when the store is shared with other processes but keeps no history,
+     *                               each process would follow a history of its own
+     */
+    public void setAskPolicy(AskPolicy policy) {
+        if (policy != null && shared != null && historyStore == null)
+            throw new IllegalStateException("Ask history is not shared by " + shared.getClass().getSimpleName());
+        this.policy = policy;
+    }
+
+    /**
+     * @return history of asks, loaded from the store on first use
+     */
+    public AskHistory history() {
+        synchronized (historyLock) {
+            if (history == null)
+                history = historyStore != null ? historyStore.loadHistory() : new AskHistory();
+            return history;
+        }
+    }
+
+    /**
+     * Hands history to the store, it is written with the next commit
+     */
+    private void keep(AskHistory history) {
+        if (historyStore != null)
+            historyStore.setHistory(history);
+    }
+
+    /**
+     * Writes history on its own, when there is no batch to commit it with
+     */
+    private void save(AskHistory history) {
+        if (historyStore == null)
+            return;
+        historyStore.setHistory(history);
+        historyStore.edit().commit();
+    }
+
+    private void recordDenials(String[] permissions, PermissionStatus status) {
+        AskHistory history = null;
+        long now = System.currentTimeMillis();
+        for (String perm : permissions) {
+            if (status.isDenied(perm)) {
+                if (history == null)
+                    history = history();
+                history.recordDenied(perm, now);
+            }
+        }
+        if (history != null)
+            save(history);
+    }
+
+    /**
+     * @param requestCode
+     * @return the request waiting for this result, or a request (with no callback) when it is not known anymore -
+     * restored from the store when the process was restarted meanwhile, without permissions when it was evicted,
+     * the store keeps only the newest request
+     */
+    public PendingRequest<C> resolve(int requestCode) {
+        return resolve(requestCode, null);
+    }
+
+    /**
+     * Same as {@link #resolve(int)}, a request not known anymore is made of permissions
+     *
+     * @param requestCode
+     * @param permissions as passed back by the system with the result, may be null or empty when it was interrupted
+     * @return
+     */
+    public PendingRequest<C> resolve(int requestCode, String[] permissions) {
+        PendingRequest<C> pending = registry.remove(requestCode);
+        if (pending != null) {
+            metrics.record(PermissionMetrics.PHASE_DIALOG, pending.started);
+            return pending;
+        }
+        if (permissions != null && permissions.length > 0)
+            return new PendingRequest<>(requestCode, permissions.clone(), null);
+        if (registry.hasRegistered())
+            return new PendingRequest<>(requestCode, new String[0], null);
+        List<String> saved = store.loadRequested();
+        return new PendingRequest<>(requestCode, saved.toArray(new String[saved.size()]), null);
+    }
+
+    /**
+     * Builds the status of permissions just answered in the system dialog by checking them again
+     *
+     * @param permissions
+     * @return
+     */
+    public PermissionStatus verify(String[] permissions) {
+        return verify((PendingRequest<C>) null, permissions);
+    }
+
+    /**
+     * Same as {@link #verify(String[])} for permissions of pending, the status covers also
+     * all the other permissions its callers planned for
+     *
+     * @param pending
+     * @return
+     */
+    public PermissionStatus verify(PendingRequest<C> pending) {
+        return verify(pending, pending.permissions);
+    }
+
+    private PermissionStatus verify(PendingRequest<C> pending, String[] permissions) {
+        long start = PermissionMetrics.start();
+        forgetAnswered(permissions);
+        PermissionStatus.Builder status = planned(pending);
+        PermissionJournal journal = this.journal;
+        for (String perm : permissions) {
+            boolean granted = hasPermission(perm);
+            metrics.recordOutcome(perm, granted);
+            if (journal != null)
+                journal.record(perm, answer(granted), codeOf(pending));
+            if (granted) {
+                status.addGranted(perm);
+            } else {
+                status.addDenied(perm);
+            }
+        }
+        addJoined(pending, status);
+        PermissionStatus built = status.build();
+        recordDenials(permissions, built);
+        metrics.record(PermissionMetrics.PHASE_VERIFY, start);
+        return built;
+    }
+
+    /**
+     * Forgets the states the system dialog may have just changed - answered permissions and their groups.
+     * All the others stay cached, so {@link #refresh()} still finds what changed outside of the request.
+     *
+     * @param permissions
+     * @return epoch of the cache after forgetting
+     */
+    private int forgetAnswered(String[] permissions) {
+        long mask = 0;
+        for (String perm : permissions) {
+            int index = PermissionRegistry.indexOf(perm);
+            if (index == PermissionRegistry.UNKNOWN) {
+                cache.forgetGranted(perm);
+            } else {
+                mask |= PermissionRegistry.groupMask(PermissionRegistry.groupOf(index));
+            }
+        }
+        return cache.forgetGranted(mask);
+    }
+
+    /**
+     * Builds the status straight from the results of the system dialog, they also go to the cache
+     *
+     * @param permissions
+     * @param grantResults {@link PermissionChecker#GRANTED} for granted permission
+     * @return
+     */
+    public PermissionStatus verify(String[] permissions, int[] grantResults) {
+        return verify(null, permissions, grantResults);
+    }
+
+    /**
+     * Same as {@link #verify(String[], int[])}, the status covers also all the other permissions
+     * callers of pending planned for
+     *
+     * @param pending      may be null
+     * @param permissions
+     * @param grantResults
+     * @return
+     */
+    public PermissionStatus verify(PendingRequest<C> pending, String[] permissions, int[] grantResults) {
+        long start = PermissionMetrics.start();
+        int epoch = forgetAnswered(permissions);
+        PermissionJournal journal = this.journal;
+        long granted = 0;
+        long denied = 0;
+        boolean others = false;
+        for (int i = 0; i < permissions.length; i++) {
+            boolean isGranted = grantResults[i] == PermissionChecker.GRANTED;
+            cache.putGranted(permissions[i], isGranted, epoch);
+            metrics.recordOutcome(permissions[i], isGranted);
+            if (journal != null)
+                journal.record(permissions[i], answer(isGranted), codeOf(pending));
+            long bit = PermissionRegistry.bitOf(permissions[i]);
+            others |= bit == 0;
+            if (isGranted) {
+                granted |= bit;
+                denied &= ~bit;
+            } else {
+                denied |= bit;
+                granted &= ~bit;
+            }
+        }
+        // the result path runs on the main thread, registry permissions go by masks without a builder
+        PermissionStatus built = others ? null : statusOf(pending, granted, denied);
+        if (built == null) {
+            PermissionStatus.Builder status = planned(pending);
+            for (int i = 0; i < permissions.length; i++) {
+                if (grantResults[i] == PermissionChecker.GRANTED) {
+                    status.addGranted(permissions[i]);
+                } else {
+                    status.addDenied(permissions[i]);
+                }
+            }
+            addJoined(pending, status);
+            built = status.build();
+        }
+        recordDenials(permissions, built);
+        metrics.record(PermissionMetrics.PHASE_VERIFY, start);
+        return built;
+    }
+
+    /**
+     * @param pending
+     * @param caller  index of the caller, below {@link PendingRequest#getCallerCount()}
+     * @param all     status of the whole request, as returned by verify
+     * @return status of only the permissions this caller planned for
+     */
+    public PermissionStatus statusFor(PendingRequest<C> pending, int caller, PermissionStatus all) {
+        RequestPlan plan = pending.plans.get(caller);
+        // a single caller planned all of it, the joined permissions included
+        if (plan == null || pending.plans.size() == 1)
+            return all;
+        PermissionStatus.Builder status = new PermissionStatus.Builder(plan.toStatus());
+        for (String perm : plan.toRequest) {
+            if (all.isGranted(perm)) {
+                status.addGranted(perm);
+            } else {
+                status.addDenied(perm);
+            }
+        }
+        return status.build();
+    }
+
+    private static PermissionStatus.Builder planned(PendingRequest<?> pending) {
+        PermissionStatus.Builder status = new PermissionStatus.Builder();
+        if (pending == null)
+            return status;
+        for (RequestPlan plan : pending.plans) {
+            if (plan != null) {
+                status.addGranted(plan.granted);
+                status.addDenied(plan.rejected);
+                status.addDenied(plan.undeclared);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Same as {@link #planned(PendingRequest)}, the results and {@link #addJoined(PendingRequest, PermissionStatus.Builder)}
+     * in that order, by masks
+     *
+     * @return null when a planned permission is not in the registry
+     */
+    private PermissionStatus statusOf(PendingRequest<C> pending, long resultGranted, long resultDenied) {
+        long granted = 0;
+        long denied = 0;
+        long joined = 0;
+        if (pending != null) {
+            for (int c = 0; c < pending.plans.size(); c++) {
+                RequestPlan plan = pending.plans.get(c);
+                if (plan == null)
+                    continue;
+                for (int i = 0; i < plan.granted.size(); i++) {
+                    long bit = PermissionRegistry.bitOf(plan.granted.get(i));
+                    if (bit == 0)
+                        return null;
+                    granted |= bit;
+                    denied &= ~bit;
+                }
+                for (int i = 0; i < plan.rejected.size(); i++) {
+                    long bit = PermissionRegistry.bitOf(plan.rejected.get(i));
+                    if (bit == 0)
+                        return null;
+                    denied |= bit;
+                    granted &= ~bit;
+                }
+                for (int i = 0; i < plan.undeclared.size(); i++) {
+                    long bit = PermissionRegistry.bitOf(plan.undeclared.get(i));
+                    if (bit == 0)
+                        return null;
+                    denied |= bit;
+                    granted &= ~bit;
+                }
+                for (int i = 0; i < plan.toRequest.size(); i++) {
+                    String perm = plan.toRequest.get(i);
+                    long bit = PermissionRegistry.bitOf(perm);
+                    if (bit == 0)
+                        return null;
+                    if (!pending.contains(perm))
+                        joined |= bit;
+                }
+            }
+        }
+        granted = (granted | resultGranted) & ~resultDenied;
+        denied = (denied | resultDenied) & ~resultGranted;
+        for (long rest = joined; rest != 0; rest &= rest - 1) {
+            long bit = Long.lowestOneBit(rest);
+            if (hasPermission(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)))) {
+                granted |= bit;
+                denied &= ~bit;
+            } else {
+                denied |= bit;
+                granted &= ~bit;
+            }
+        }
+        return PermissionStatus.ofMasks(granted, denied);
+    }
+
+    /**
+     * Adds permissions callers wanted, but left out of pending as they were asked for by the request
+     * before it
+     */
+    private void addJoined(PendingRequest<C> pending, PermissionStatus.Builder status) {
+        if (pending == null)
+            return;
+        for (RequestPlan plan : pending.plans) {
+            if (plan == null)
+                continue;
+            for (String perm : plan.toRequest) {
+                if (pending.contains(perm))
+                    continue;
+                if (hasPermission(perm)) {
+                    status.addGranted(perm);
+                } else {
+                    status.addDenied(perm);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached grant states, next use will check them again
+     */
+    public void invalidate() {
+        cache.invalidate();
+    }
+
+    /**
+     * Same as {@link #invalidate()}, but when someone is subscribed, it returns a task checking again
+     * every permission whose state was cached, e.g. to find out what the user changed in system settings
+     * while we were in background. Pass its result to {@link #publish(PermissionStatus)}.
+     *
+     * @return task computing the changes, run it on any thread, or null when no one is subscribed
+     */
+    public Callable<PermissionStatus> refresh() {
+        if (listeners.isEmpty()) {
+            cache.invalidate();
+            return null;
+        }
+        final PermissionStateCache.Grants before = cache.invalidateAndGet();
+        return new Callable<PermissionStatus>() {
+            @Override
+            public PermissionStatus call() {
+                return diff(before);
+            }
+        };
+    }
+
+    private PermissionStatus diff(PermissionStateCache.Grants before) {
+        PermissionStatus.Builder changes = new PermissionStatus.Builder();
+        for (long rest = before.known; rest != 0; rest &= rest - 1) {
+            int index = Long.numberOfTrailingZeros(rest);
+            addChange(changes, PermissionRegistry.nameOf(index), (before.granted & (1L << index)) != 0);
+        }
+        if (before.others != null) {
+            for (Map.Entry<String, Boolean> entry : before.others.entrySet()) {
+                addChange(changes, entry.getKey(), entry.getValue());
+            }
+        }
+        return changes.build();
+    }
+
+    private void addChange(PermissionStatus.Builder changes, String permission, boolean wasGranted) {
+        boolean granted = hasPermission(permission);
+        if (granted == wasGranted)
+            return;
+        if (granted) {
+            changes.addGranted(permission);
+        } else {
+            changes.addDenied(permission);
+        }
+    }
+
+    /**
+     * Passes changes to all the subscribers, on the calling thread
+     *
+     * @param changes as computed by the task of {@link #refresh()}, nothing happens when empty
+     */
+    public void publish(PermissionStatus changes) {
+        if (!changes.hasGranted() && !changes.hasDenied())
+            return;
+        for (PermissionListener listener : listeners) {
+            listener.onPermissionsChanged(changes);
+        }
+    }
+
+    /**
+     * @param listener gets permission changes found by {@link #refresh()}, added only once
+     */
+    public void subscribe(PermissionListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void unsubscribe(PermissionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return latencies and outcomes of requests made by this engine
+     */
+    public PermissionMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts recording decisions to journal, null stops it. Without a journal nothing is recorded at all.
+     *
+     * @param journal
+     */
+    public void setJournal(PermissionJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return journal decisions are recorded to, null when none
+     */
+    public PermissionJournal journal() {
+        return journal;
+    }
+
+    private static int answer(boolean granted) {
+        return granted ? PermissionJournal.DECISION_ANSWER_GRANTED : PermissionJournal.DECISION_ANSWER_DENIED;
+    }
+
+    private static int codeOf(PendingRequest<?> pending) {
+        return pending == null ? PermissionJournal.NO_REQUEST : pending.requestCode;
+    }
+
+    PermissionStateCache cache() {
+        return cache;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Answers whether all the permissions of a {@link PermissionSet} are granted, meant for hot paths
+ * like camera preview frames or location updates, see {@link PermissionEngine#guard(PermissionSet)}.
+ * <p>
+ * A check reads the cached grant mask - it allocates nothing and does not go to the {@link PermissionChecker}
+ * unless the cache was invalidated since the last check, then only the permissions not known are checked once.
+ */
+public final class PermissionGuard {
+    private final PermissionEngine<?> engine;
+    private final PermissionSet set;
+
+    PermissionGuard(PermissionEngine<?> engine, PermissionSet set) {
+        this.engine = engine;
+        this.set = set;
+    }
+
+    /**
+     * @return whether all the permissions of the set are granted
+     */
+    public boolean allGranted() {
+        return engine.allGranted(set);
+    }
+
+    public PermissionSet getSet() {
+        return set;
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Last decisions of the engine, for reconstructing what happened to a permission flow,
+ * see {@link PermissionEngine#setJournal(PermissionJournal)}.
+ * <p>
+ * Events are two longs in a ring of fixed size - time and packed sequence, request code, decision and
+ * registry index. Recording neither locks nor allocates, writers claim slots by one atomic increment and
+ * the oldest events are overwritten. {@link #writeTo(OutputStream)} skips events being written meanwhile.
+ */
+public final class PermissionJournal {
+    /**
+     * Already granted when planned
+     */
+    public static final int DECISION_GRANTED = 0;
+    /**
+     * Not granted and not asked before, to request
+     */
+    public static final int DECISION_TO_REQUEST = 1;
+    /**
+     * Not granted and asked before, not requested again
+     */
+    public static final int DECISION_REJECTED = 2;
+    /**
+     * Missing in the manifest, not requested
+     */
+    public static final int DECISION_UNDECLARED = 3;
+    /**
+     * Marked as asked, with the request code when it went to the system dialog
+     */
+    public static final int DECISION_MARKED_ASKED = 4;
+    /**
+     * Asked marker cleared
+     */
+    public static final int DECISION_CLEARED = 5;
+    /**
+     * Granted in the result of a request
+     */
+    public static final int DECISION_ANSWER_GRANTED = 6;
+    /**
+     * Denied in the result of a request
+     */
+    public static final int DECISION_ANSWER_DENIED = 7;
+
+    /**
+     * Request code of events not belonging to any request
+     */
+    public static final int NO_REQUEST = 0xFFFF;
+    /**
+     * Index of permissions not in {@link PermissionRegistry}
+     */
+    public static final int OTHER_PERMISSION = 0xFF;
+
+    private static final int MAGIC = 0x52504a4c; // RPJL
+    private static final int VERSION = 1;
+
+    private final int mask;
+    // time and packed event of every slot, packed 0 while the slot is being written
+    private final AtomicLongArray events;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public PermissionJournal(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        events = new AtomicLongArray(size * 2);
+    }
+
+    /**
+     * @return number of events kept
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return number of events recorded so far, including overwritten ones
+     */
+    public long recorded() {
+        return cursor.get();
+    }
+
+    /**
+     * @param permission
+     * @param decision    one of the DECISION constants
+     * @param requestCode or {@link #NO_REQUEST}
+     */
+    void record(String permission, int decision, int requestCode) {
+        int index = PermissionRegistry.indexOf(permission);
+        record(index == PermissionRegistry.UNKNOWN ? OTHER_PERMISSION : index, decision, requestCode);
+    }
+
+    void recordAll(List<String> permissions, int decision, int requestCode) {
+        for (int i = 0; i < permissions.size(); i++) {
+            record(permissions.get(i), decision, requestCode);
+        }
+    }
+
+    private void record(int index, int decision, int requestCode) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask) * 2;
+        events.lazySet(slot + 1, 0);
+        events.lazySet(slot, System.nanoTime());
+        // sequence + 1, so no complete event is ever 0
+        events.lazySet(slot + 1, (sequence + 1) << 32 | (requestCode & 0xFFFFL) << 16
+                | (decision & 0xFF) << 8 | (index & 0xFF));
+    }
+
+    /**
+     * Writes kept events, oldest first: magic, version, {@link PermissionRegistry#layoutHash()},
+     * wall clock millis and nano time of the dump (to place event times), event count, then every event
+     * as nano time (long), request code (short), decision (byte) and registry index (byte)
+     *
+     * @param out not closed
+     * @return number of events written
+     * @throws IOException
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        long end = cursor.get();
+        long begin = Math.max(0, end - capacity());
+        long[] times = new long[(int) (end - begin)];
+        long[] packed = new long[times.length];
+        int count = 0;
+        for (long sequence = begin; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask) * 2;
+            long before = events.get(slot + 1);
+            long time = events.get(slot);
+            // unfinished, or overwritten by a newer event meanwhile
+            if (before >>> 32 != ((sequence + 1) & 0xFFFFFFFFL) || events.get(slot + 1) != before)
+                continue;
+            times[count] = time;
+            packed[count++] = before;
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(PermissionRegistry.layoutHash());
+        data.writeLong(System.currentTimeMillis());
+        data.writeLong(System.nanoTime());
+        data.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            data.writeLong(times[i]);
+            data.writeShort((int) (packed[i] >>> 16));
+            data.writeByte((int) (packed[i] >>> 8));
+            data.writeByte((int) packed[i]);
+        }
+        data.flush();
+        return count;
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Subscriber to permission changes, see {@link PermissionEngine#subscribe(PermissionListener)}
+ */
+public interface PermissionListener {
+    /**
+     * @param changes only permissions whose state flipped - newly granted in granted,
+     *                revoked in denied, never empty
+     */
+    void onPermissionsChanged(PermissionStatus changes);
+}
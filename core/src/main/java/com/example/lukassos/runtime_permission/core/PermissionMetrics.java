@@ -0,0 +1,195 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of request phases and outcomes of permissions, see {@link PermissionEngine#metrics()}.
+ * <p>
+ * Recording neither locks nor allocates - every value goes to a fixed slot of an {@link AtomicLongArray}.
+ * Latencies land in power-of-two microsecond buckets, counters are striped by thread, so concurrent
+ * recording threads rarely touch the same slot. Only {@link #snapshot()} sums it all up.
+ */
+public final class PermissionMetrics {
+    /**
+     * Checking grant states and asked markers before a request
+     */
+    public static final int PHASE_PRE_CHECK = 0;
+    /**
+     * Writing asked markers and requested permissions
+     */
+    public static final int PHASE_PERSIST = 1;
+    /**
+     * From the request until its result arrives, i.e. the system dialog
+     */
+    public static final int PHASE_DIALOG = 2;
+    /**
+     * Building the status of the result
+     */
+    public static final int PHASE_VERIFY = 3;
+    public static final int PHASE_COUNT = 4;
+
+    /**
+     * Bucket i holds latencies below 1024 << i nanoseconds (about 2^i microseconds), the last one all the longer
+     */
+    public static final int BUCKETS = 24;
+
+    private static final int STRIPES = 4;
+    // count, total nanos and buckets of one phase
+    private static final int PHASE_SLOTS = 2 + BUCKETS;
+    private static final int STRIPE_SLOTS = PHASE_COUNT * PHASE_SLOTS;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(STRIPES * STRIPE_SLOTS);
+    // granted and denied of every registry index, the last pair for permissions not in registry
+    private final AtomicLongArray outcomes = new AtomicLongArray((PermissionRegistry.count() + 1) * 2);
+
+    PermissionMetrics() {
+    }
+
+    /**
+     * @return time to pass to {@link #record(int, long)}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param phase
+     * @param startNanos value of {@link #start()} when the phase started
+     */
+    void record(int phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        int base = stripe() * STRIPE_SLOTS + phase * PHASE_SLOTS;
+        latencies.incrementAndGet(base);
+        latencies.addAndGet(base + 1, nanos);
+        latencies.incrementAndGet(base + 2 + bucketOf(nanos));
+    }
+
+    /**
+     * @param permission
+     * @param granted    answer of the user
+     */
+    void recordOutcome(String permission, boolean granted) {
+        int index = PermissionRegistry.indexOf(permission);
+        if (index == PermissionRegistry.UNKNOWN)
+            index = PermissionRegistry.count();
+        outcomes.incrementAndGet(index * 2 + (granted ? 0 : 1));
+    }
+
+    /**
+     * @return copy of all counters, not atomic as a whole - it may miss values recorded meanwhile
+     */
+    public Snapshot snapshot() {
+        long[] phases = new long[STRIPE_SLOTS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * STRIPE_SLOTS;
+            for (int i = 0; i < STRIPE_SLOTS; i++) {
+                phases[i] += latencies.get(base + i);
+            }
+        }
+        long[] answers = new long[outcomes.length()];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = outcomes.get(i);
+        }
+        return new Snapshot(phases, answers);
+    }
+
+    /**
+     * Passes a snapshot to sink
+     *
+     * @param sink
+     */
+    public void exportTo(MetricsSink sink) {
+        sink.export(snapshot());
+    }
+
+    static int bucketOf(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >>> 10);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * Counters at one point in time
+     */
+    public static final class Snapshot {
+        private final long[] phases;
+        private final long[] outcomes;
+
+        Snapshot(long[] phases, long[] outcomes) {
+            this.phases = phases;
+            this.outcomes = outcomes;
+        }
+
+        /**
+         * @param phase one of PHASE_ constants
+         * @return how many times the phase was recorded
+         */
+        public long count(int phase) {
+            return phases[phase * PHASE_SLOTS];
+        }
+
+        public long totalNanos(int phase) {
+            return phases[phase * PHASE_SLOTS + 1];
+        }
+
+        public long meanNanos(int phase) {
+            long count = count(phase);
+            return count == 0 ? 0 : totalNanos(phase) / count;
+        }
+
+        /**
+         * @param phase
+         * @param bucket below {@link #BUCKETS}
+         * @return how many latencies of phase fell into bucket
+         */
+        public long bucketCount(int phase, int bucket) {
+            return phases[phase * PHASE_SLOTS + 2 + bucket];
+        }
+
+        /**
+         * @param bucket
+         * @return exclusive upper bound of bucket in nanoseconds, {@link Long#MAX_VALUE} for the last one
+         */
+        public static long bucketLimitNanos(int bucket) {
+            return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1024L << bucket;
+        }
+
+        /**
+         * @param phase
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        public long percentileNanos(int phase, double percentile) {
+            long count = count(phase);
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += bucketCount(phase, bucket);
+                if (seen >= rank)
+                    return bucketLimitNanos(bucket);
+            }
+            return bucketLimitNanos(BUCKETS - 1);
+        }
+
+        /**
+         * @param index registry index, or {@link PermissionRegistry#count()} for all the others
+         * @return how many times the permission was granted in the system dialog
+         */
+        public long granted(int index) {
+            return outcomes[index * 2];
+        }
+
+        /**
+         * @param index registry index, or {@link PermissionRegistry#count()} for all the others
+         * @return how many times the permission was denied in the system dialog
+         */
+        public long denied(int index) {
+            return outcomes[index * 2 + 1];
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Static table of all the dangerous (runtime) permissions of the platform.
+ * <p>
+ * Every permission has a dense index, which is also its bit in permission masks, the group
+ * the system grants it with, and the SDK level since which it has to be requested at runtime.
+ * Background permissions belong to a group, but are never granted along with it, see
+ * {@link #isGrantedWithGroup(int)}.
+ * Names are looked up in O(1) through an open addressing hash table built once with the class.
+ * Permissions not listed here have no index and are kept aside by their owners.
+ * <p>
+ * Adding a permission means adding a row to {@link #TABLE} - at most 64 fit into one mask.
+ */
+public final class PermissionRegistry {
+    public static final int UNKNOWN = -1;
+
+    public static final int GROUP_CALENDAR = 0;
+    public static final int GROUP_CAMERA = 1;
+    public static final int GROUP_CONTACTS = 2;
+    public static final int GROUP_LOCATION = 3;
+    public static final int GROUP_MICROPHONE = 4;
+    public static final int GROUP_PHONE = 5;
+    public static final int GROUP_CALL_LOG = 6;
+    public static final int GROUP_SENSORS = 7;
+    public static final int GROUP_SMS = 8;
+    public static final int GROUP_STORAGE = 9;
+    public static final int GROUP_ACTIVITY_RECOGNITION = 10;
+    public static final int GROUP_NEARBY_DEVICES = 11;
+    public static final int GROUP_NOTIFICATIONS = 12;
+    public static final int GROUP_READ_MEDIA_VISUAL = 13;
+    public static final int GROUP_READ_MEDIA_AURAL = 14;
+    public static final int GROUP_COUNT = 15;
+
+    private static final String P = "android.permission.";
+
+    // name, group, runtime since SDK
+    private static final Object[][] TABLE = {
+            {P + "READ_CALENDAR", GROUP_CALENDAR, 23},
+            {P + "WRITE_CALENDAR", GROUP_CALENDAR, 23},
+
+            {P + "CAMERA", GROUP_CAMERA, 23},
+
+            {P + "READ_CONTACTS", GROUP_CONTACTS, 23},
+            {P + "WRITE_CONTACTS", GROUP_CONTACTS, 23},
+            {P + "GET_ACCOUNTS", GROUP_CONTACTS, 23},
+
+            {P + "ACCESS_FINE_LOCATION", GROUP_LOCATION, 23},
+            {P + "ACCESS_COARSE_LOCATION", GROUP_LOCATION, 23},
+            {P + "ACCESS_BACKGROUND_LOCATION", GROUP_LOCATION, 29},
+
+            {P + "RECORD_AUDIO", GROUP_MICROPHONE, 23},
+
+            {P + "READ_PHONE_STATE", GROUP_PHONE, 23},
+            {P + "READ_PHONE_NUMBERS", GROUP_PHONE, 26},
+            {P + "CALL_PHONE", GROUP_PHONE, 23},
+            {P + "ANSWER_PHONE_CALLS", GROUP_PHONE, 26},
+            {"com.android.voicemail.permission.ADD_VOICEMAIL", GROUP_PHONE, 23},
+            {P + "USE_SIP", GROUP_PHONE, 23},
+            {P + "ACCEPT_HANDOVER", GROUP_PHONE, 28},
+
+            {P + "READ_CALL_LOG", GROUP_CALL_LOG, 23},
+            {P + "WRITE_CALL_LOG", GROUP_CALL_LOG, 23},
+            {P + "PROCESS_OUTGOING_CALLS", GROUP_CALL_LOG, 23},
+
+            {P + "BODY_SENSORS", GROUP_SENSORS, 23},
+            {P + "BODY_SENSORS_BACKGROUND", GROUP_SENSORS, 33},
+
+            {P + "SEND_SMS", GROUP_SMS, 23},
+            {P + "RECEIVE_SMS", GROUP_SMS, 23},
+            {P + "READ_SMS", GROUP_SMS, 23},
+            {P + "RECEIVE_WAP_PUSH", GROUP_SMS, 23},
+            {P + "RECEIVE_MMS", GROUP_SMS, 23},
+
+            {P + "READ_EXTERNAL_STORAGE", GROUP_STORAGE, 23},
+            {P + "WRITE_EXTERNAL_STORAGE", GROUP_STORAGE, 23},
+            {P + "ACCESS_MEDIA_LOCATION", GROUP_STORAGE, 29},
+
+            {P + "ACTIVITY_RECOGNITION", GROUP_ACTIVITY_RECOGNITION, 29},
+
+            {P + "BLUETOOTH_SCAN", GROUP_NEARBY_DEVICES, 31},
+            {P + "BLUETOOTH_CONNECT", GROUP_NEARBY_DEVICES, 31},
+            {P + "BLUETOOTH_ADVERTISE", GROUP_NEARBY_DEVICES, 31},
+            {P + "UWB_RANGING", GROUP_NEARBY_DEVICES, 31},
+            {P + "NEARBY_WIFI_DEVICES", GROUP_NEARBY_DEVICES, 33},
+
+            {P + "POST_NOTIFICATIONS", GROUP_NOTIFICATIONS, 33},
+
+            {P + "READ_MEDIA_IMAGES", GROUP_READ_MEDIA_VISUAL, 33},
+            {P + "READ_MEDIA_VIDEO", GROUP_READ_MEDIA_VISUAL, 33},
+
+            {P + "READ_MEDIA_AUDIO", GROUP_READ_MEDIA_AURAL, 33},
+    };
+
+    // granted by their own rules only - after the foreground permission, in a prompt of their own or in settings
+    private static final String[] GRANTED_ALONE = {
+            P + "ACCESS_BACKGROUND_LOCATION",
+            P + "BODY_SENSORS_BACKGROUND",
+    };
+
+    private static final int COUNT = TABLE.length;
+    private static final String[] NAMES = new String[COUNT];
+    private static final int[] GROUPS = new int[COUNT];
+    private static final int[] MIN_SDKS = new int[COUNT];
+    private static final long[] GROUP_MASKS = new long[GROUP_COUNT];
+    private static final long GRANTED_ALONE_MASK;
+
+    // open addressing, linear probing, at most half full
+    private static final int SLOT_MASK = Integer.highestOneBit(COUNT * 4 - 1) - 1;
+    private static final String[] SLOT_NAMES = new String[SLOT_MASK + 1];
+    private static final byte[] SLOT_INDEXES = new byte[SLOT_MASK + 1];
+
+    static {
+        if (COUNT > 64)
+            throw new IllegalStateException("Permission masks hold 64 permissions at most");
+        for (int i = 0; i < COUNT; i++) {
+            NAMES[i] = (String) TABLE[i][0];
+            GROUPS[i] = (Integer) TABLE[i][1];
+            MIN_SDKS[i] = (Integer) TABLE[i][2];
+            GROUP_MASKS[GROUPS[i]] |= 1L << i;
+
+            int slot = spread(NAMES[i].hashCode()) & SLOT_MASK;
+            while (SLOT_NAMES[slot] != null) {
+                slot = (slot + 1) & SLOT_MASK;
+            }
+            SLOT_NAMES[slot] = NAMES[i];
+            SLOT_INDEXES[slot] = (byte) i;
+        }
+        long alone = 0;
+        for (String name : GRANTED_ALONE) {
+            alone |= bitOf(name);
+        }
+        GRANTED_ALONE_MASK = alone;
+    }
+
+    private PermissionRegistry() {
+    }
+
+    /**
+     * @param permission
+     * @return dense index of permission or {@link #UNKNOWN}
+     */
+    public static int indexOf(String permission) {
+        int slot = spread(permission.hashCode()) & SLOT_MASK;
+        String name;
+        while ((name = SLOT_NAMES[slot]) != null) {
+            if (name.equals(permission))
+                return SLOT_INDEXES[slot];
+            slot = (slot + 1) & SLOT_MASK;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @param permission
+     * @return single bit mask of permission or 0 when it is unknown
+     */
+    public static long bitOf(String permission) {
+        int index = indexOf(permission);
+        return index == UNKNOWN ? 0L : 1L << index;
+    }
+
+    public static String nameOf(int index) {
+        return NAMES[index];
+    }
+
+    /**
+     * @param index
+     * @return one of GROUP_ constants
+     */
+    public static int groupOf(int index) {
+        return GROUPS[index];
+    }
+
+    /**
+     * @param index
+     * @return whether the system grants the permission without a prompt once another permission of its group
+     * is granted, and grants the group with it
+     */
+    public static boolean isGrantedWithGroup(int index) {
+        return (GRANTED_ALONE_MASK & 1L << index) == 0;
+    }
+
+    /**
+     * @param index
+     * @return SDK level since which the permission has to be requested at runtime
+     */
+    public static int minSdkOf(int index) {
+        return MIN_SDKS[index];
+    }
+
+    /**
+     * @param group one of GROUP_ constants
+     * @return mask of all the permissions in group
+     */
+    public static long groupMask(int group) {
+        return GROUP_MASKS[group];
+    }
+
+    /**
+     * @param sdk
+     * @return mask of all the permissions which are runtime permissions on sdk
+     */
+    public static long runtimeMask(int sdk) {
+        long mask = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (MIN_SDKS[i] <= sdk)
+                mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    public static int count() {
+        return COUNT;
+    }
+
+    /**
+     * @return hash of names in index order, changes whenever some index does
+     */
+    public static int layoutHash() {
+        int hash = COUNT;
+        for (String name : NAMES) {
+            hash = 31 * hash + name.hashCode();
+        }
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
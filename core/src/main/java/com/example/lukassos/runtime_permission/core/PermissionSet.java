@@ -0,0 +1,77 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Fixed set of permissions compiled once into a registry mask, for checks repeated many times,
+ * see {@link PermissionGuard}. Permissions not in {@link PermissionRegistry} are kept aside.
+ */
+public final class PermissionSet {
+    final long mask;
+    final String[] others;
+
+    PermissionSet(long mask, String[] others) {
+        this.mask = mask;
+        this.others = others;
+    }
+
+    public static PermissionSet of(String... permissions) {
+        long mask = 0;
+        LinkedHashSet<String> others = new LinkedHashSet<>();
+        for (String perm : permissions) {
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0)
+                mask |= bit;
+            else
+                others.add(perm);
+        }
+        return new PermissionSet(mask, others.toArray(new String[others.size()]));
+    }
+
+    /**
+     * Set whose mask was computed at build time, by generated code, see {@link NeedsPermissions}
+     *
+     * @param layoutHash {@link PermissionRegistry#layoutHash()} the mask was computed with
+     * @param mask
+     * @param others     permissions not in the registry
+     * @return
+     * @throws IllegalStateException when the registry changed since, the code has to be generated again
+     */
+    public static PermissionSet compiled(int layoutHash, long mask, String... others) {
+        if (layoutHash != PermissionRegistry.layoutHash())
+            throw new IllegalStateException("Permission registry changed, rebuild generated permission tables");
+        return new PermissionSet(mask, others);
+    }
+
+    /**
+     * @param sdk
+     * @return all the registry permissions which are runtime permissions on sdk
+     */
+    public static PermissionSet runtime(int sdk) {
+        return new PermissionSet(PermissionRegistry.runtimeMask(sdk), new String[0]);
+    }
+
+    public static PermissionSet of(Collection<String> permissions) {
+        return of(permissions.toArray(new String[permissions.size()]));
+    }
+
+    /**
+     * @return registry permissions in index order, followed by the others
+     */
+    public ArrayList<String> toList() {
+        ArrayList<String> result = new ArrayList<>(Long.bitCount(mask) + others.length);
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            result.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+        }
+        for (String other : others) {
+            result.add(other);
+        }
+        return result;
+    }
+
+    public int size() {
+        return Long.bitCount(mask) + others.length;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.HashMap;
+
+/**
+ * Memory of permission states, so repeated requests do not have to
+ * go to PackageManager and SharedPreferences for every permission.
+ * <p>
+ * Grant states are valid for one epoch only - the user can change them in system settings
+ * any time we are not in foreground, so {@link #invalidate()} starts a new epoch on every resume.
+ * Asked markers survive invalidation, unless the store is shared with another process,
+ * then they are dropped whenever the store version changes, see {@link #syncAsked(long)}.
+ */
+final class PermissionStateCache {
+    static final int UNKNOWN = 0;
+    static final int YES = 1;
+    static final int NO = 2;
+
+    private int epoch;
+
+    // known permissions, see PermissionRegistry
+    private long grantKnown;
+    private long granted;
+    private long askedKnown;
+    private long asked;
+    private long askedVersion;
+
+    // all the others
+    private final HashMap<String, Boolean> otherGranted = new HashMap<>();
+    private final HashMap<String, Boolean> otherAsked = new HashMap<>();
+
+    PermissionStateCache() {
+    }
+
+    /**
+     * @return current epoch, pass it back to {@link #putGranted(String, boolean, int)}
+     */
+    synchronized int epoch() {
+        return epoch;
+    }
+
+    /**
+     * @param permission
+     * @return {@link #YES}, {@link #NO} or {@link #UNKNOWN} when it was not checked in this epoch
+     */
+    synchronized int granted(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0)
+            return (grantKnown & bit) == 0 ? UNKNOWN : ((granted & bit) != 0 ? YES : NO);
+        return state(otherGranted.get(permission));
+    }
+
+    /**
+     * @param mask of registry permissions
+     * @return {@link #YES} when all of them are granted, {@link #NO} when some is not,
+     * {@link #UNKNOWN} when some was not checked in this epoch and none is known not granted
+     */
+    synchronized int grantedAll(long mask) {
+        if ((mask & grantKnown & ~granted) != 0)
+            return NO;
+        return (mask & ~grantKnown) != 0 ? UNKNOWN : YES;
+    }
+
+    /**
+     * Stores the grant state unless the cache was invalidated since the check started
+     *
+     * @param permission
+     * @param isGranted
+     * @param checkEpoch epoch read before the check
+     */
+    synchronized void putGranted(String permission, boolean isGranted, int checkEpoch) {
+        if (checkEpoch != epoch)
+            return;
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0) {
+            grantKnown |= bit;
+            granted = isGranted ? granted | bit : granted & ~bit;
+        } else {
+            otherGranted.put(permission, isGranted);
+        }
+    }
+
+    /**
+     * @param permission
+     * @return {@link #YES} when it was marked as asked, {@link #NO} when not, {@link #UNKNOWN} when not loaded yet
+     */
+    synchronized int asked(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0)
+            return (askedKnown & bit) == 0 ? UNKNOWN : ((asked & bit) != 0 ? YES : NO);
+        return state(otherAsked.get(permission));
+    }
+
+    synchronized void putAsked(String permission, boolean isAsked) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0) {
+            askedKnown |= bit;
+            asked = isAsked ? asked | bit : asked & ~bit;
+        } else {
+            otherAsked.put(permission, isAsked);
+        }
+    }
+
+    /**
+     * Drops all asked markers when the store changed since they were cached
+     *
+     * @param version current version of the store
+     */
+    synchronized void syncAsked(long version) {
+        if (version == askedVersion)
+            return;
+        askedVersion = version;
+        askedKnown = 0;
+        asked = 0;
+        otherAsked.clear();
+    }
+
+    /**
+     * Drops cached grant state of single permission, e.g. right after the system dialog answered it
+     *
+     * @param permission
+     */
+    synchronized void forgetGranted(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0)
+            grantKnown &= ~bit;
+        else
+            otherGranted.remove(permission);
+    }
+
+    /**
+     * Drops cached grant states of some registry permissions, e.g. those the system dialog may have just changed,
+     * the others stay known. Starts new epoch, so checks running meanwhile do not store the states from before.
+     *
+     * @param mask of registry permissions
+     * @return the new epoch
+     */
+    synchronized int forgetGranted(long mask) {
+        epoch++;
+        grantKnown &= ~mask;
+        granted &= ~mask;
+        return epoch;
+    }
+
+    /**
+     * Starts new epoch - all grant states will be checked again on next use
+     */
+    synchronized void invalidate() {
+        epoch++;
+        grantKnown = 0;
+        granted = 0;
+        otherGranted.clear();
+    }
+
+    /**
+     * Same as {@link #invalidate()}
+     *
+     * @return grant states known in the ending epoch
+     */
+    synchronized Grants invalidateAndGet() {
+        Grants grants = new Grants(grantKnown, granted,
+                otherGranted.isEmpty() ? null : new HashMap<>(otherGranted));
+        invalidate();
+        return grants;
+    }
+
+    private static int state(Boolean value) {
+        return value == null ? UNKNOWN : (value ? YES : NO);
+    }
+
+    /**
+     * Grant states of one epoch
+     */
+    static final class Grants {
+        final long known;
+        final long granted;
+        final HashMap<String, Boolean> others;
+
+        Grants(long known, long granted, HashMap<String, Boolean> others) {
+            this.known = known;
+            this.granted = granted;
+            this.others = others;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistence of what we have asked the user for, survives process restarts
+ */
+public interface PermissionStateStore {
+    /**
+     * @param permission
+     * @return whether we have already asked the user for permission
+     */
+    boolean isAsked(String permission);
+
+    /**
+     * @return permissions saved by the last request, the store must not return stale data
+     * even if a batch is still being written
+     */
+    List<String> loadRequested();
+
+    /**
+     * @return new empty batch of changes, nothing is written until {@link Batch#commit()}
+     */
+    Batch edit();
+
+    /**
+     * Changes collected for one atomic write
+     */
+    interface Batch {
+        Batch markAsAsked(String permission);
+
+        Batch clearMarkAsAsked(String permission);
+
+        Batch setRequested(Collection<String> permissions);
+
+        void commit();
+    }
+}
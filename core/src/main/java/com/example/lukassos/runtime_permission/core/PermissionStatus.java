@@ -0,0 +1,346 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Model Class for storing info of requesting permissions process.
+ * Known permissions are kept as bits of three masks (see {@link PermissionRegistry}),
+ * any other permission strings fall into a small overflow map.
+ * <p>
+ * Statuses are immutable snapshots, so they can be kept and passed to other threads freely.
+ * They are made by {@link Builder}, or derived from another status by {@link #withGranted(String)},
+ * {@link #withDenied(String)} and {@link #without(String)}, which share whatever did not change.
+ * Statuses of known permissions all granted or all denied are interned - the same outcome
+ * is the same instance.
+ */
+public final class PermissionStatus {
+    private static final int REQUESTED = 1;
+    private static final int GRANTED = 1 << 1;
+    private static final int DENIED = 1 << 2;
+
+    // interned outcomes, bounded so odd masks do not fill the memory
+    private static final int INTERNED_MAX = 256;
+    private static final ConcurrentHashMap<Long, PermissionStatus> ALL_GRANTED = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, PermissionStatus> ALL_DENIED = new ConcurrentHashMap<>();
+
+    public static final PermissionStatus EMPTY = new PermissionStatus(0, 0, 0, null);
+
+    final long requested;
+    final long granted;
+    final long denied;
+    // permissions without a bit, null when there are none, never modified once the status is built
+    private final Map<String, Integer> overflow;
+
+    // lazily built views, racy but idempotent
+    private volatile List<String> requestedList;
+    private volatile List<String> grantedList;
+    private volatile List<String> deniedList;
+
+    /**
+     * @deprecated use {@link Builder}
+     */
+    @Deprecated
+    public PermissionStatus(
+            ArrayList<String> granted,
+            ArrayList<String> requested,
+            ArrayList<String> denied) {
+        Builder builder = new Builder();
+        for (String perm : requested) {
+            builder.set(perm, REQUESTED, 0);
+        }
+        for (String perm : granted) {
+            builder.set(perm, GRANTED, 0);
+        }
+        for (String perm : denied) {
+            builder.set(perm, DENIED, 0);
+        }
+        this.requested = builder.requested;
+        this.granted = builder.granted;
+        this.denied = builder.denied;
+        this.overflow = builder.build().overflow;
+    }
+
+    private PermissionStatus(long requested, long granted, long denied, Map<String, Integer> overflow) {
+        this.requested = requested;
+        this.granted = granted;
+        this.denied = denied;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Status of registry permissions only, built without a {@link Builder}
+     *
+     * @param granted mask of granted registry permissions
+     * @param denied  mask of denied registry permissions, must not overlap granted
+     * @return status, interned when all are granted or all denied
+     */
+    static PermissionStatus ofMasks(long granted, long denied) {
+        long requested = granted | denied;
+        if (requested == 0)
+            return EMPTY;
+        if (denied == 0)
+            return intern(ALL_GRANTED, new PermissionStatus(requested, granted, 0, null), granted);
+        if (granted == 0)
+            return intern(ALL_DENIED, new PermissionStatus(requested, 0, denied, null), denied);
+        return new PermissionStatus(requested, granted, denied, null);
+    }
+
+    /**
+     * @param perm
+     * @return this status with perm granted, this very instance if it already is
+     */
+    public PermissionStatus withGranted(String perm) {
+        return isGranted(perm) ? this : new Builder(this).addGranted(perm).build();
+    }
+
+    /**
+     * @param perm
+     * @return this status with perm denied, this very instance if it already is
+     */
+    public PermissionStatus withDenied(String perm) {
+        return isDenied(perm) ? this : new Builder(this).addDenied(perm).build();
+    }
+
+    /**
+     * @param perm
+     * @return this status without perm
+     */
+    public PermissionStatus without(String perm) {
+        return new Builder(this).removeFromAll(perm).build();
+    }
+
+    /**
+     * @return unmodifiable list, the same on every call
+     */
+    public List<String> getRequested() {
+        List<String> list = requestedList;
+        if (list == null)
+            requestedList = list = this.collect(requested, REQUESTED);
+        return list;
+    }
+
+    /**
+     * @return unmodifiable list, the same on every call
+     */
+    public List<String> getGranted() {
+        List<String> list = grantedList;
+        if (list == null)
+            grantedList = list = this.collect(granted, GRANTED);
+        return list;
+    }
+
+    /**
+     * @return unmodifiable list, the same on every call
+     */
+    public List<String> getDenied() {
+        List<String> list = deniedList;
+        if (list == null)
+            deniedList = list = this.collect(denied, DENIED);
+        return list;
+    }
+
+    public boolean isGranted(String perm) {
+        return this.has(perm, granted, GRANTED);
+    }
+
+    public boolean isDenied(String perm) {
+        return this.has(perm, denied, DENIED);
+    }
+
+    public boolean hasGranted() {
+        return granted != 0 || this.overflowHas(GRANTED);
+    }
+
+    public boolean hasDenied() {
+        return denied != 0 || this.overflowHas(DENIED);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PermissionStatus))
+            return false;
+        PermissionStatus other = (PermissionStatus) o;
+        return requested == other.requested && granted == other.granted && denied == other.denied
+                && (overflow == null ? other.overflow == null : overflow.equals(other.overflow));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (requested ^ (requested >>> 32));
+        result = 31 * result + (int) (granted ^ (granted >>> 32));
+        result = 31 * result + (int) (denied ^ (denied >>> 32));
+        return 31 * result + (overflow == null ? 0 : overflow.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionStatus{granted=" + getGranted() + ", denied=" + getDenied() + "}";
+    }
+
+    private boolean has(String perm, long mask, int flag) {
+        long bit = PermissionRegistry.bitOf(perm);
+        if (bit != 0)
+            return (mask & bit) != 0;
+        Integer flags = overflow == null ? null : overflow.get(perm);
+        return flags != null && (flags & flag) != 0;
+    }
+
+    private boolean overflowHas(int flag) {
+        if (overflow == null)
+            return false;
+        for (Integer flags : overflow.values()) {
+            if ((flags & flag) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private List<String> collect(long mask, int flag) {
+        ArrayList<String> result = new ArrayList<>(Long.bitCount(mask));
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            result.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+        }
+        if (overflow != null) {
+            for (Map.Entry<String, Integer> entry : overflow.entrySet()) {
+                if ((entry.getValue() & flag) != 0)
+                    result.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static PermissionStatus intern(ConcurrentHashMap<Long, PermissionStatus> interned, PermissionStatus status,
+                                           long mask) {
+        PermissionStatus known = interned.get(mask);
+        if (known != null)
+            return known;
+        if (interned.size() >= INTERNED_MAX)
+            return status;
+        known = interned.putIfAbsent(mask, status);
+        return known == null ? status : known;
+    }
+
+    /**
+     * Collects changes of a status, not thread safe
+     */
+    public static final class Builder {
+        long requested;
+        long granted;
+        long denied;
+        private Map<String, Integer> overflow;
+        // overflow is still the one of the base status
+        private boolean shared;
+
+        public Builder() {
+        }
+
+        /**
+         * @param base status to change, its parts are copied only when changed
+         */
+        public Builder(PermissionStatus base) {
+            requested = base.requested;
+            granted = base.granted;
+            denied = base.denied;
+            overflow = base.overflow;
+            shared = overflow != null;
+        }
+
+        public Builder addGranted(String perm) {
+            this.set(perm, GRANTED | REQUESTED, DENIED);
+            return this;
+        }
+
+        public Builder addGranted(List<String> perms) {
+            for (String perm : perms) {
+                this.addGranted(perm);
+            }
+            return this;
+        }
+
+        public Builder addDenied(String perm) {
+            this.set(perm, DENIED | REQUESTED, GRANTED);
+            return this;
+        }
+
+        public Builder addDenied(List<String> perms) {
+            for (String perm : perms) {
+                this.addDenied(perm);
+            }
+            return this;
+        }
+
+        /**
+         * @param grantedMask registry permissions to add as granted
+         * @param deniedMask  registry permissions to add as denied, must not overlap grantedMask
+         */
+        Builder addMasks(long grantedMask, long deniedMask) {
+            requested |= grantedMask | deniedMask;
+            granted = (granted | grantedMask) & ~deniedMask;
+            denied = (denied | deniedMask) & ~grantedMask;
+            return this;
+        }
+
+        public Builder removeFromAll(String perm) {
+            this.set(perm, 0, GRANTED | REQUESTED | DENIED);
+            return this;
+        }
+
+        /**
+         * @return snapshot of the changes so far, the builder can go on changing it
+         */
+        public PermissionStatus build() {
+            Map<String, Integer> snapshot = overflow == null || overflow.isEmpty() ? null : overflow;
+            if (snapshot == null) {
+                if (requested == 0)
+                    return EMPTY;
+                if (denied == 0 && granted == requested)
+                    return intern(ALL_GRANTED, new PermissionStatus(requested, granted, 0, null), granted);
+                if (granted == 0 && denied == requested)
+                    return intern(ALL_DENIED, new PermissionStatus(requested, 0, denied, null), denied);
+            } else {
+                // further changes must not touch the snapshot
+                shared = true;
+            }
+            return new PermissionStatus(requested, granted, denied, snapshot);
+        }
+
+        void set(String perm, int add, int remove) {
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0) {
+                requested = apply(requested, bit, add, remove, REQUESTED);
+                granted = apply(granted, bit, add, remove, GRANTED);
+                denied = apply(denied, bit, add, remove, DENIED);
+                return;
+            }
+            if (overflow == null) {
+                if (add == 0)
+                    return;
+                overflow = new LinkedHashMap<>();
+            } else if (shared) {
+                overflow = new LinkedHashMap<>(overflow);
+                shared = false;
+            }
+            Integer flags = overflow.get(perm);
+            int updated = ((flags == null ? 0 : flags) | add) & ~remove;
+            if (updated == 0)
+                overflow.remove(perm);
+            else
+                overflow.put(perm, updated);
+        }
+
+        private static long apply(long mask, long bit, int add, int remove, int flag) {
+            if ((add & flag) != 0)
+                return mask | bit;
+            if ((remove & flag) != 0)
+                return mask & ~bit;
+            return mask;
+        }
+    }
+}
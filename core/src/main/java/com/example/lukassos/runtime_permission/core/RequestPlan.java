@@ -0,0 +1,78 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What one request has to do, see {@link PermissionEngine#plan(List)}.
+ * <p>
+ * Wanted permissions are deduplicated and split into already granted, previously rejected and
+ * those going to the system dialog. The latter are ordered by permission group, members of a group
+ * which already has a granted permission are granted by the system without any prompt.
+ * Permissions not declared in the manifest (when it is known) are rejected right away, so are those
+ * the {@link AskPolicy} wants a rationale for first.
+ */
+public final class RequestPlan {
+    final ArrayList<String> granted = new ArrayList<>();
+    final ArrayList<String> rejected = new ArrayList<>();
+    final ArrayList<String> toRequest = new ArrayList<>();
+    final ArrayList<String> undeclared = new ArrayList<>();
+    final ArrayList<String> needsRationale = new ArrayList<>();
+    int prompts;
+    // registry permissions to request granted silently along with their group, not shown to the user
+    long silent;
+
+    RequestPlan() {
+    }
+
+    /**
+     * @return permissions for requestPermissions, ordered by group
+     */
+    public List<String> getToRequest() {
+        return toRequest;
+    }
+
+    public List<String> getGranted() {
+        return granted;
+    }
+
+    /**
+     * @return permissions asked for before, but still not granted, those needing a rationale included
+     */
+    public List<String> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return rejected permissions the policy lets be asked for again once the rationale was shown,
+     * see {@link PermissionEngine#markRationaleShown(String)}
+     */
+    public List<String> getNeedsRationale() {
+        return needsRationale;
+    }
+
+    /**
+     * @return how many prompts the user will see - one per permission group needing a decision
+     */
+    public int getPromptCount() {
+        return prompts;
+    }
+
+    /**
+     * @return permissions missing in the manifest, they can never be granted
+     */
+    public List<String> getUndeclared() {
+        return undeclared;
+    }
+
+    public boolean needsRequest() {
+        return !toRequest.isEmpty();
+    }
+
+    /**
+     * @return status of everything known without asking - granted, rejected and undeclared permissions
+     */
+    public PermissionStatus toStatus() {
+        return new PermissionStatus.Builder().addGranted(granted).addDenied(rejected).addDenied(undeclared).build();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.util.ArrayList;
+
+/**
+ * Requests of one owner (an Activity on Android). The system shows only one permission dialog
+ * at once, so while a request is in flight the others wait here, merged into one next request.
+ *
+ * @param <C> type of callbacks waiting for request results
+ */
+final class RequestQueue<C> {
+    PendingRequest<C> inFlight;
+
+    // callers waiting for the next request and what it will ask for
+    final ArrayList<RequestPlan> plans = new ArrayList<>();
+    final ArrayList<C> callbacks = new ArrayList<>();
+    private long mask;
+    private long silent;
+    private ArrayList<String> others;
+
+    /**
+     * @param plan
+     * @param callback
+     * @param skip     request whose permissions need not be asked again, may be null
+     * @return false if there was nothing new to ask for, the caller was not added
+     */
+    boolean add(RequestPlan plan, C callback, PendingRequest<C> skip) {
+        boolean added = false;
+        for (String perm : plan.toRequest) {
+            if (skip != null && skip.contains(perm))
+                continue;
+            long bit = PermissionRegistry.bitOf(perm);
+            if (bit != 0) {
+                mask |= bit;
+            } else {
+                if (others == null)
+                    others = new ArrayList<>();
+                if (!others.contains(perm))
+                    others.add(perm);
+            }
+            added = true;
+        }
+        if (added) {
+            silent |= plan.silent;
+            plans.add(plan);
+            callbacks.add(callback);
+        }
+        return added;
+    }
+
+    /**
+     * Replaces callback from of waiting callers and of the request in flight by to
+     *
+     * @param from not null
+     * @param to
+     */
+    void replace(C from, C to) {
+        replace(callbacks, from, to);
+        if (inFlight != null)
+            replace(inFlight.callbacks, from, to);
+    }
+
+    private static <C> void replace(ArrayList<C> callbacks, C from, C to) {
+        for (int i = 0; i < callbacks.size(); i++) {
+            if (callbacks.get(i) == from)
+                callbacks.set(i, to);
+        }
+    }
+
+    /**
+     * @return mask of merged permissions granted silently along with their group
+     */
+    long silent() {
+        return silent & mask;
+    }
+
+    boolean isWaiting() {
+        return !callbacks.isEmpty();
+    }
+
+    /**
+     * @return merged permissions of waiting callers, in group order
+     */
+    ArrayList<String> permissions() {
+        ArrayList<String> result = new ArrayList<>(Long.bitCount(mask) + (others == null ? 0 : others.size()));
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            result.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+        }
+        if (others != null)
+            result.addAll(others);
+        return result;
+    }
+
+    /**
+     * Hands all waiting callers over to request
+     *
+     * @param request
+     */
+    void moveTo(PendingRequest<C> request) {
+        for (int i = 0; i < callbacks.size(); i++) {
+            request.addCaller(plans.get(i), callbacks.get(i));
+        }
+        plans.clear();
+        callbacks.clear();
+        mask = 0;
+        silent = 0;
+        others = null;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * In-memory registry of requests waiting for the system dialog result.
+ * <p>
+ * Every request gets a small unique request code - the low bits select one of
+ * {@link #CAPACITY} slots, the high bits are a generation counter. Codes fit into 8 bits,
+ * so they are accepted by Activities as well as by support Fragments.
+ * When all the slots are taken the oldest request is evicted.
+ *
+ * @param <C> type of callbacks waiting for the results
+ */
+final class RequestRegistry<C> {
+    static final int CAPACITY = 16;
+
+    private static final int SLOT_BITS = 4;
+    private static final int SLOT_MASK = CAPACITY - 1;
+    private static final int GENERATIONS = 1 << (8 - SLOT_BITS);
+
+    @SuppressWarnings("unchecked")
+    private final PendingRequest<C>[] slots = (PendingRequest<C>[]) new PendingRequest<?>[CAPACITY];
+    private int next;
+    private int generation = 1;
+    private boolean registered;
+
+    RequestRegistry() {
+    }
+
+    /**
+     * @param permissions
+     * @param queue       queue the request belongs to, may be null
+     * @return new request with unique request code, add its callers before it is resolved
+     */
+    synchronized PendingRequest<C> register(String[] permissions, RequestQueue<C> queue) {
+        int slot = next;
+        int requestCode = (generation << SLOT_BITS) | slot;
+        PendingRequest<C> request = new PendingRequest<>(requestCode, permissions, queue);
+        slots[slot] = request;
+        registered = true;
+
+        next = (next + 1) & SLOT_MASK;
+        if (next == 0) {
+            // generation 0 is never used, so no request code is ever 0..15
+            generation = generation + 1 == GENERATIONS ? 1 : generation + 1;
+        }
+        return request;
+    }
+
+    /**
+     * @param requestCode
+     * @return the request removed from registry or null if it is not known (evicted or process restarted)
+     */
+    synchronized PendingRequest<C> remove(int requestCode) {
+        int slot = requestCode & SLOT_MASK;
+        PendingRequest<C> entry = slots[slot];
+        if (entry == null || entry.requestCode != requestCode)
+            return null;
+        slots[slot] = null;
+        return entry;
+    }
+
+    /**
+     * @return whether any request was registered since the process started
+     */
+    synchronized boolean hasRegistered() {
+        return registered;
+    }
+
+    /**
+     * @param request
+     * @return false if the request was resolved or evicted already
+     */
+    synchronized boolean contains(PendingRequest<C> request) {
+        return slots[request.requestCode & SLOT_MASK] == request;
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.lukassos.runtime_permission.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * State store shared by several processes of one app, e.g. UI and background sync, through a small
+ * memory-mapped file.
+ * <p>
+ * Layout: magic, {@link PermissionRegistry#layoutHash()}, version, asked mask, requested mask, then
+ * permissions not in the registry. Writers hold an exclusive file lock, readers a shared one - taking
+ * and releasing the lock are system calls, which also order the accesses to the mapping between processes.
+ * Only the version, a 32-bit word read atomically on every device, is read without locking: the engine
+ * reads it before every use of its cached markers and reads the markers again once it changed.
+ * Commits are synchronous, they only touch memory - the kernel writes the pages back.
+ * <p>
+ * The ask history of {@link AskPolicy} is not shared, the engine rejects a policy over this store.
+ * Keep one instance per process for its whole life, {@link #close()} it when it is not needed anymore.
+ */
+public final class SharedFileStateStore implements VersionedStateStore, Closeable {
+    private static final int MAGIC = 0x52505332; // RPS2
+    private static final int SIZE = 4096;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_LAYOUT = 4;
+    private static final int OFFSET_VERSION = 8;
+    // 12 is padding, so the masks are aligned
+    private static final int OFFSET_ASKED = 16;
+    private static final int OFFSET_REQUESTED = 24;
+    private static final int OFFSET_OTHERS_LENGTH = 32;
+    private static final int OFFSET_OTHERS = 36;
+    private static final int OTHERS_CAPACITY = SIZE - OFFSET_OTHERS;
+
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Object lock = new Object();
+
+    // permissions not in the registry, decoded once per version
+    private long othersVersion = -1;
+    private Others others = new Others();
+
+    /**
+     * @param file where to keep the state, the same path in every process
+     * @throws IOException when the file cannot be opened or mapped
+     */
+    public SharedFileStateStore(File file) throws IOException {
+        access = new RandomAccessFile(file, "rw");
+        channel = access.getChannel();
+        MappedByteBuffer mapped;
+        FileLock fileLock;
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            fileLock = channel.lock();
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        }
+        buffer = mapped;
+        try {
+            if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_LAYOUT) != PermissionRegistry.layoutHash()) {
+                // new file, or written by a different registry layout
+                buffer.putInt(OFFSET_VERSION, buffer.getInt(OFFSET_VERSION) + 1);
+                buffer.putLong(OFFSET_ASKED, 0);
+                buffer.putLong(OFFSET_REQUESTED, 0);
+                buffer.putInt(OFFSET_OTHERS_LENGTH, 0);
+                buffer.putInt(OFFSET_LAYOUT, PermissionRegistry.layoutHash());
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+            }
+        } finally {
+            fileLock.release();
+        }
+    }
+
+    /**
+     * @return version of the shared state, changes with every commit of any process
+     */
+    @Override
+    public long version() {
+        return buffer.getInt(OFFSET_VERSION) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean isAsked(String permission) {
+        long bit = PermissionRegistry.bitOf(permission);
+        if (bit != 0)
+            return (readMask(OFFSET_ASKED) & bit) != 0;
+        return others().asked.contains(permission);
+    }
+
+    @Override
+    public List<String> loadRequested() {
+        long requested;
+        Others current;
+        synchronized (lock) {
+            // both parts of one commit
+            FileLock fileLock = lockFile(true);
+            try {
+                requested = buffer.getLong(OFFSET_REQUESTED);
+                current = othersLocked();
+            } finally {
+                release(fileLock);
+            }
+        }
+        ArrayList<String> result = new ArrayList<>(Long.bitCount(requested) + current.requested.size());
+        for (long rest = requested; rest != 0; rest &= rest - 1) {
+            result.add(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(rest)));
+        }
+        result.addAll(current.requested);
+        return result;
+    }
+
+    @Override
+    public Batch edit() {
+        return new SharedBatch();
+    }
+
+    private long readMask(int offset) {
+        synchronized (lock) {
+            FileLock fileLock = lockFile(true);
+            try {
+                return buffer.getLong(offset);
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    private Others others() {
+        synchronized (lock) {
+            FileLock fileLock = lockFile(true);
+            try {
+                return othersLocked();
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    /**
+     * Call with lock and the file lock held
+     */
+    private Others othersLocked() {
+        long version = version();
+        if (version != othersVersion) {
+            others = decodeOthers();
+            othersVersion = version;
+        }
+        return others;
+    }
+
+    /**
+     * Closes the file, the store cannot be used anymore - reads and commits throw IllegalStateException then
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            access.close();
+        }
+    }
+
+    private Others decodeOthers() {
+        Others result = new Others();
+        int length = buffer.getInt(OFFSET_OTHERS_LENGTH);
+        if (length <= 0 || length > OTHERS_CAPACITY)
+            return result;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(OFFSET_OTHERS + i);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int asked = in.readUnsignedShort();
+            for (int i = 0; i < asked; i++) {
+                result.asked.add(in.readUTF());
+            }
+            int requested = in.readUnsignedShort();
+            for (int i = 0; i < requested; i++) {
+                result.requested.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            // left by a writer which died in the middle, nothing to recover
+            return new Others();
+        }
+        return result;
+    }
+
+    private static byte[] encodeOthers(Others others) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(others.asked.size());
+            for (String perm : others.asked) {
+                out.writeUTF(perm);
+            }
+            out.writeShort(others.requested.size());
+            for (String perm : others.requested) {
+                out.writeUTF(perm);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // in memory stream does not fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private FileLock lockFile(boolean shared) {
+        try {
+            return channel.lock(0, SIZE, shared);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot lock shared permission state", e);
+        }
+    }
+
+    private static void release(FileLock fileLock) {
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            // released with the channel anyway
+        }
+    }
+
+    /**
+     * Permissions not in the registry
+     */
+    private static final class Others {
+        final LinkedHashSet<String> asked = new LinkedHashSet<>();
+        final ArrayList<String> requested = new ArrayList<>();
+    }
+
+    /**
+     * Changes collected for one atomic write
+     */
+    private final class SharedBatch implements Batch {
+        private long ask;
+        private long clear;
+        private final LinkedHashSet<String> othersToAsk = new LinkedHashSet<>();
+        private final LinkedHashSet<String> othersToClear = new LinkedHashSet<>();
+        private Collection<String> requestedPermissions;
+
+        @Override
+        public Batch markAsAsked(String permission) {
+            long bit = PermissionRegistry.bitOf(permission);
+            if (bit != 0) {
+                ask |= bit;
+                clear &= ~bit;
+            } else {
+                othersToAsk.add(permission);
+                othersToClear.remove(permission);
+            }
+            return this;
+        }
+
+        @Override
+        public Batch clearMarkAsAsked(String permission) {
+            long bit = PermissionRegistry.bitOf(permission);
+            if (bit != 0) {
+                clear |= bit;
+                ask &= ~bit;
+            } else {
+                othersToClear.add(permission);
+                othersToAsk.remove(permission);
+            }
+            return this;
+        }
+
+        @Override
+        public Batch setRequested(Collection<String> permissions) {
+            requestedPermissions = new ArrayList<>(permissions);
+            return this;
+        }
+
+        /**
+         * Applies the changes to the shared state, on top of whatever other processes wrote
+         *
+         * @throws IllegalStateException when permissions not in the registry do not fit into the file
+         */
+        @Override
+        public void commit() {
+            synchronized (lock) {
+                FileLock fileLock = lockFile(false);
+                try {
+                    Others current = decodeOthers();
+                    long asked = (buffer.getLong(OFFSET_ASKED) | ask) & ~clear;
+                    long requested = buffer.getLong(OFFSET_REQUESTED);
+                    current.asked.addAll(othersToAsk);
+                    current.asked.removeAll(othersToClear);
+                    if (requestedPermissions != null) {
+                        requested = 0;
+                        current.requested.clear();
+                        for (String perm : requestedPermissions) {
+                            long bit = PermissionRegistry.bitOf(perm);
+                            if (bit != 0) {
+                                requested |= bit;
+                            } else if (!current.requested.contains(perm)) {
+                                current.requested.add(perm);
+                            }
+                        }
+                    }
+                    byte[] encoded = encodeOthers(current);
+                    if (encoded.length > OTHERS_CAPACITY)
+                        throw new IllegalStateException("Too many permissions outside the registry to share");
+
+                    buffer.putLong(OFFSET_ASKED, asked);
+                    buffer.putLong(OFFSET_REQUESTED, requested);
+                    for (int i = 0; i < encoded.length; i++) {
+                        buffer.put(OFFSET_OTHERS + i, encoded[i]);
+                    }
+                    buffer.putInt(OFFSET_OTHERS_LENGTH, encoded.length);
+                    buffer.putInt(OFFSET_VERSION, buffer.getInt(OFFSET_VERSION) + 1);
+                } finally {
+                    release(fileLock);
+                }
+            }
+        }
+    }
+}
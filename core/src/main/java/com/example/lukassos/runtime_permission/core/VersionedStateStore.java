@@ -0,0 +1,12 @@
+package com.example.lukassos.runtime_permission.core;
+
+/**
+ * Store which can be changed by somebody else than this engine, e.g. another process of the app.
+ * The engine compares {@link #version()} before using asked markers it has cached.
+ */
+public interface VersionedStateStore extends PermissionStateStore {
+    /**
+     * @return version of the stored state, must change with every commit, must be cheap
+     */
+    long version();
+}
@@ -0,0 +1,115 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileStateStoreTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "state");
+    }
+
+    @Test
+    public void stateSurvivesReopening() {
+        FileStateStore store = new FileStateStore(file);
+        assertFalse(store.exists());
+        store.edit()
+                .markAsAsked(CAMERA)
+                .markAsAsked(CUSTOM)
+                .markAsAsked(CONTACTS)
+                .setRequested(Arrays.asList(CUSTOM, CAMERA))
+                .commit();
+        store.edit().clearMarkAsAsked(CONTACTS).commit();
+        // visible before it is written
+        assertTrue(store.isAsked(CAMERA));
+        assertTrue(store.awaitPendingWrites(5, TimeUnit.SECONDS));
+
+        FileStateStore reopened = new FileStateStore(file);
+        assertTrue(reopened.exists());
+        assertTrue(reopened.isAsked(CAMERA));
+        assertTrue(reopened.isAsked(CUSTOM));
+        assertFalse(reopened.isAsked(CONTACTS));
+        assertEquals(Arrays.asList(CAMERA, CUSTOM), reopened.loadRequested());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void requestedPermissionsAreOnDiskWhenCommitted() {
+        FileStateStore store = new FileStateStore(file);
+        store.edit().markAsAsked(CAMERA).setRequested(Arrays.asList(CAMERA, CUSTOM)).commit();
+
+        // the process may die right after, while the dialog shows
+        FileStateStore restarted = new FileStateStore(file);
+        assertEquals(Arrays.asList(CAMERA, CUSTOM), restarted.loadRequested());
+        assertTrue(restarted.isAsked(CAMERA));
+    }
+
+    @Test
+    public void corruptedFileIsIgnored() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        FileStateStore store = new FileStateStore(file);
+        assertFalse(store.isAsked(CAMERA));
+        assertTrue(store.loadRequested().isEmpty());
+    }
+
+    @Test
+    public void historySurvivesReopening() {
+        FileStateStore store = new FileStateStore(file);
+        AskHistory history = store.loadHistory();
+        history.recordAsked(Arrays.asList(CAMERA, CUSTOM), 0, 1000000L);
+        history.recordDenied(CUSTOM, 2000000L);
+        history.recordRationale(CAMERA);
+        store.setHistory(history);
+        store.edit().markAsAsked(CAMERA).commit();
+        assertTrue(store.awaitPendingWrites(5, TimeUnit.SECONDS));
+
+        AskHistory reopened = new FileStateStore(file).loadHistory();
+        assertEquals(1, reopened.askCount(CAMERA));
+        assertEquals(1000000L, reopened.lastAskedMillis(CUSTOM));
+        assertEquals(2000000L, reopened.lastDeniedMillis(CUSTOM));
+        assertTrue(reopened.isRationaleShown(CAMERA));
+        assertEquals(0, reopened.askCount(CONTACTS));
+    }
+
+    @Test
+    public void fileWithoutHistoryIsRead() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x52505354);
+        out.writeByte(1);
+        out.writeInt(PermissionRegistry.layoutHash());
+        out.writeLong(PermissionRegistry.bitOf(CAMERA));
+        out.writeLong(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.close();
+
+        FileStateStore store = new FileStateStore(file);
+        assertTrue(store.isAsked(CAMERA));
+        assertEquals(0, store.loadHistory().askCount(CAMERA));
+    }
+}
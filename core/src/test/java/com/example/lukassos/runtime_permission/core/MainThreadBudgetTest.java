@@ -0,0 +1,281 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Budgets of the engine calls RuntimePermissionsUtils makes on the UI thread - button click to request,
+ * onRequestPermissionsResult to verify - made in the same order against a simulated PackageManager
+ * and the real file store. The test thread plays the main thread: every binder call, store read and commit
+ * made on it is counted like a StrictMode violation, a path over its budget fails the build.
+ * Counts are compared, not time, which depends on the machine running the test.
+ * <p>
+ * The Android glue creating the engine - PackageInfo of the manifest, migration of SharedPreferences -
+ * is not covered here, it runs on the prewarm thread and reports itself as a StrictMode slow call
+ * when made on the main thread.
+ */
+public class MainThreadBudgetTest {
+    private static final int SDK = 23;
+
+    private static final String FINE = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String COARSE = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String AUDIO = "android.permission.RECORD_AUDIO";
+    private static final String PHONE = "android.permission.CALL_PHONE";
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+    // the "request all" button of MainActivity
+    private static final List<String> ALL = Arrays.asList(FINE, COARSE, CAMERA, CONTACTS, AUDIO, PHONE, STORAGE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Object activity = new Object();
+    private SimulatedPackageManager packageManager;
+    private CountingStore store;
+    private PermissionEngine<String> engine;
+
+    @Before
+    public void setUp() {
+        packageManager = new SimulatedPackageManager();
+        packageManager.granted.add(CONTACTS);
+        store = new CountingStore(new FileStateStore(new File(folder.getRoot(), "state")));
+        engine = new PermissionEngine<>(packageManager, store);
+        engine.setManifest(new ManifestIndex(ALL.toArray(new String[ALL.size()])));
+    }
+
+    @After
+    public void tearDown() {
+        store.delegate.awaitPendingWrites(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void prewarmedClickMakesNoBinderCallNorDiskRead() throws InterruptedException {
+        prewarmInBackground();
+
+        Budget budget = new Budget("click on request all").ipc(0).reads(0).commits(1);
+        PendingRequest<String> pending = engine.submit(activity, engine.plan(activity, ALL), "activity");
+        budget.check();
+        assertNotNull(pending);
+    }
+
+    @Test
+    public void coldClickChecksEveryPermissionOnce() {
+        // and the ask history, loaded to record the asks
+        Budget budget = new Budget("cold click on request all").ipc(ALL.size()).reads(ALL.size() + 1).commits(1);
+        engine.submit(activity, engine.plan(activity, ALL), "activity");
+        budget.check();
+
+        // the same click again within the epoch is answered from memory
+        budget = new Budget("repeated click").ipc(0).reads(0).commits(0);
+        assertNull(engine.submit(activity, engine.plan(activity, ALL), "activity"));
+        budget.check();
+    }
+
+    @Test
+    public void resultWithGrantResultsMakesNoBinderCallNorDiskRead() throws InterruptedException {
+        prewarmInBackground();
+        PendingRequest<String> first = engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA)), "camera");
+        engine.submit(activity, engine.plan(activity, Arrays.asList(AUDIO)), "audio");
+
+        Budget budget = new Budget("onRequestPermissionsResult").ipc(0).reads(0).commits(1);
+        PendingRequest<String> pending = engine.resolve(first.getRequestCode());
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        PendingRequest<String> next = engine.next(pending);
+        budget.check();
+        assertTrue(status.isGranted(CAMERA));
+        assertNotNull(next);
+    }
+
+    @Test
+    public void resultWithoutGrantResultsChecksOnlyRequestedPermissions() throws InterruptedException {
+        prewarmInBackground();
+        PendingRequest<String> pending = engine.submit(activity, engine.plan(activity, ALL), "activity");
+
+        // interrupted request, the states are checked again - only those that went to the dialog,
+        // the denials go to the ask history
+        Budget budget = new Budget("interrupted result").ipc(pending.getPermissions().length).reads(0).commits(1);
+        engine.verify(engine.resolve(pending.getRequestCode()));
+        budget.check();
+    }
+
+    @Test
+    public void guardInFrameLoopMakesNoBinderCall() throws InterruptedException {
+        prewarmInBackground();
+        PermissionGuard guard = engine.guard(PermissionSet.of(CAMERA, FINE));
+
+        Budget budget = new Budget("guard every frame").ipc(0).reads(0).commits(0);
+        for (int frame = 0; frame < 1000; frame++) {
+            guard.allGranted();
+        }
+        budget.check();
+    }
+
+    private void prewarmInBackground() throws InterruptedException {
+        Thread prewarm = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                engine.prewarm(PermissionSet.runtime(SDK));
+            }
+        }, "prewarm");
+        prewarm.start();
+        prewarm.join();
+    }
+
+    /**
+     * Binder calls, store reads and commits made on the main thread by one path
+     */
+    private final class Budget {
+        private final String path;
+        private final Thread main = Thread.currentThread();
+        private final int ipcBefore = packageManager.mainThreadCalls.get();
+        private final int readsBefore = store.mainThreadReads.get();
+        private final int commitsBefore = store.mainThreadCommits.get();
+        private int maxIpc;
+        private int maxReads;
+        private int maxCommits;
+
+        Budget(String path) {
+            this.path = path;
+        }
+
+        Budget ipc(int max) {
+            maxIpc = max;
+            return this;
+        }
+
+        Budget reads(int max) {
+            maxReads = max;
+            return this;
+        }
+
+        Budget commits(int max) {
+            maxCommits = max;
+            return this;
+        }
+
+        void check() {
+            if (Thread.currentThread() != main)
+                throw new IllegalStateException("budget checked on another thread");
+            int ipc = packageManager.mainThreadCalls.get() - ipcBefore;
+            int reads = store.mainThreadReads.get() - readsBefore;
+            int commits = store.mainThreadCommits.get() - commitsBefore;
+            ArrayList<String> violations = new ArrayList<>();
+            if (ipc > maxIpc)
+                violations.add(ipc + " binder calls, budget " + maxIpc);
+            if (reads > maxReads)
+                violations.add(reads + " store reads, budget " + maxReads);
+            if (commits > maxCommits)
+                violations.add(commits + " commits, budget " + maxCommits);
+            if (!violations.isEmpty())
+                fail(path + " over budget on the main thread: " + violations);
+        }
+    }
+
+    /**
+     * PackageManager of a device, every check is a binder call
+     */
+    private static final class SimulatedPackageManager implements PermissionChecker {
+        final HashSet<String> granted = new HashSet<>();
+        final AtomicInteger mainThreadCalls = new AtomicInteger();
+        private final Thread main = Thread.currentThread();
+
+        @Override
+        public boolean isGranted(String permission) {
+            if (Thread.currentThread() == main)
+                mainThreadCalls.incrementAndGet();
+            synchronized (granted) {
+                return granted.contains(permission);
+            }
+        }
+    }
+
+    /**
+     * Store counting what the main thread does with it, any read may go to the disk
+     */
+    private static final class CountingStore implements HistoryStore {
+        final FileStateStore delegate;
+        final AtomicInteger mainThreadReads = new AtomicInteger();
+        final AtomicInteger mainThreadCommits = new AtomicInteger();
+        private final Thread main = Thread.currentThread();
+
+        CountingStore(FileStateStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isAsked(String permission) {
+            if (Thread.currentThread() == main)
+                mainThreadReads.incrementAndGet();
+            return delegate.isAsked(permission);
+        }
+
+        @Override
+        public List<String> loadRequested() {
+            if (Thread.currentThread() == main)
+                mainThreadReads.incrementAndGet();
+            return delegate.loadRequested();
+        }
+
+        @Override
+        public AskHistory loadHistory() {
+            if (Thread.currentThread() == main)
+                mainThreadReads.incrementAndGet();
+            return delegate.loadHistory();
+        }
+
+        @Override
+        public void setHistory(AskHistory history) {
+            // kept for the next commit, counted there
+            delegate.setHistory(history);
+        }
+
+        @Override
+        public Batch edit() {
+            final Batch batch = delegate.edit();
+            return new Batch() {
+                @Override
+                public Batch markAsAsked(String permission) {
+                    batch.markAsAsked(permission);
+                    return this;
+                }
+
+                @Override
+                public Batch clearMarkAsAsked(String permission) {
+                    batch.clearMarkAsAsked(permission);
+                    return this;
+                }
+
+                @Override
+                public Batch setRequested(Collection<String> permissions) {
+                    batch.setRequested(permissions);
+                    return this;
+                }
+
+                @Override
+                public void commit() {
+                    if (Thread.currentThread() == main)
+                        mainThreadCommits.incrementAndGet();
+                    batch.commit();
+                }
+            };
+        }
+    }
+}
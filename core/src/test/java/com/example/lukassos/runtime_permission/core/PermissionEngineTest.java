@@ -0,0 +1,612 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionEngineTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    private final HashSet<String> granted = new HashSet<>();
+    private final HashMap<String, Boolean> asked = new HashMap<>();
+    private int checks;
+    private int commits;
+
+    private PermissionChecker checker;
+    private PermissionStateStore store;
+    private PermissionEngine<String> engine;
+
+    @Before
+    public void setUp() {
+        checker = new PermissionChecker() {
+            @Override
+            public boolean isGranted(String permission) {
+                checks++;
+                return granted.contains(permission);
+            }
+        };
+        store = new PermissionStateStore() {
+            private List<String> requested = new ArrayList<>();
+
+            @Override
+            public boolean isAsked(String permission) {
+                return asked.containsKey(permission) && asked.get(permission);
+            }
+
+            @Override
+            public List<String> loadRequested() {
+                return requested;
+            }
+
+            @Override
+            public Batch edit() {
+                return new Batch() {
+                    @Override
+                    public Batch markAsAsked(String permission) {
+                        asked.put(permission, true);
+                        return this;
+                    }
+
+                    @Override
+                    public Batch clearMarkAsAsked(String permission) {
+                        asked.put(permission, false);
+                        return this;
+                    }
+
+                    @Override
+                    public Batch setRequested(Collection<String> permissions) {
+                        requested = new ArrayList<>(permissions);
+                        return this;
+                    }
+
+                    @Override
+                    public void commit() {
+                        commits++;
+                    }
+                };
+            }
+        };
+        engine = new PermissionEngine<>(checker, store);
+    }
+
+    @Test
+    public void classifiesUnAskedAndRejected() {
+        granted.add(CAMERA);
+        asked.put(CONTACTS, true);
+        List<String> wanted = Arrays.asList(CAMERA, CONTACTS, CUSTOM);
+
+        assertEquals(Arrays.asList(CUSTOM), engine.findUnAskedPermissions(wanted));
+        assertEquals(Arrays.asList(CONTACTS), engine.findRejectedPermissions(wanted));
+        // both classifications together check every permission just once
+        assertEquals(3, checks);
+
+        engine.findUnAskedPermissions(wanted);
+        assertEquals(3, checks);
+
+        engine.invalidate();
+        engine.findUnAskedPermissions(wanted);
+        assertEquals(6, checks);
+    }
+
+    @Test
+    public void planCollapsesByGroup() {
+        String fine = "android.permission.ACCESS_FINE_LOCATION";
+        String coarse = "android.permission.ACCESS_COARSE_LOCATION";
+        String writeContacts = "android.permission.WRITE_CONTACTS";
+        granted.add(fine);
+        asked.put(coarse, true);
+        asked.put(CONTACTS, true);
+
+        RequestPlan plan = engine.plan(Arrays.asList(coarse, CAMERA, fine, CONTACTS, CAMERA, writeContacts, CUSTOM));
+
+        assertEquals(Arrays.asList(fine), plan.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), plan.getRejected());
+        // coarse goes silently with granted fine, the rest in group order
+        assertEquals(Arrays.asList(CAMERA, writeContacts, coarse, CUSTOM), plan.getToRequest());
+        assertEquals(3, plan.getPromptCount());
+        assertEquals(6, checks);
+
+        int requestCode = engine.beginRequest(plan, "callback");
+        PendingRequest<String> pending = engine.resolve(requestCode);
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), new int[]{0, -1, 0, -1});
+        assertEquals(Arrays.asList(CAMERA, fine, coarse), status.getGranted());
+        assertEquals(Arrays.asList(CONTACTS, writeContacts, CUSTOM), status.getDenied());
+    }
+
+    @Test
+    public void backgroundLocationIsNotGrantedWithItsGroup() {
+        String fine = "android.permission.ACCESS_FINE_LOCATION";
+        String coarse = "android.permission.ACCESS_COARSE_LOCATION";
+        String background = "android.permission.ACCESS_BACKGROUND_LOCATION";
+        granted.add(fine);
+
+        RequestPlan plan = engine.plan(Arrays.asList(fine, coarse, background));
+        assertEquals(Arrays.asList(coarse, background), plan.getToRequest());
+        // a prompt of its own, coarse goes silently with fine
+        assertEquals(1, plan.getPromptCount());
+
+        engine.markAsAsked(Arrays.asList(background));
+        plan = engine.plan(Arrays.asList(fine, coarse, background));
+        assertEquals(Arrays.asList(coarse), plan.getToRequest());
+        assertEquals(Arrays.asList(background), plan.getRejected());
+        assertEquals(0, plan.getPromptCount());
+
+        FeatureIndex index = new FeatureIndex.Builder().add("tracking", fine, background).build();
+        assertTrue(engine.evaluate(index).isBlocked(index.idOf("tracking")));
+    }
+
+    @Test
+    public void requestIsResolvedByItsCode() {
+        List<String> wanted = Arrays.asList(CAMERA, CUSTOM);
+
+        int requestCode = engine.beginRequest(wanted, "callback");
+        assertEquals(1, commits);
+        assertTrue(!engine.shouldWeAsk(CAMERA) && !engine.shouldWeAsk(CUSTOM));
+
+        PendingRequest<String> pending = engine.resolve(requestCode);
+        assertEquals("callback", pending.getCallback(0));
+        assertArrayEquals(new String[]{CAMERA, CUSTOM}, pending.getPermissions());
+
+        PermissionStatus status = engine.verify(pending.getPermissions(), new int[]{PermissionChecker.GRANTED, -1});
+        assertEquals(Arrays.asList(CAMERA), status.getGranted());
+        assertEquals(Arrays.asList(CUSTOM), status.getDenied());
+        // results went to the cache, no check needed
+        assertTrue(engine.hasPermission(CAMERA));
+        assertEquals(0, checks);
+    }
+
+    @Test
+    public void unknownCodeIsRestoredFromStore() {
+        int requestCode = engine.beginRequest(Arrays.asList(CONTACTS), "callback");
+
+        // the process was restarted while the dialog was shown
+        PermissionEngine<String> restarted = new PermissionEngine<>(checker, store);
+        PendingRequest<String> restored = restarted.resolve(requestCode);
+        assertEquals(0, restored.getCallerCount());
+        assertArrayEquals(new String[]{CONTACTS}, restored.getPermissions());
+    }
+
+    @Test
+    public void unknownCodeIsNotTakenForNewerRequest() {
+        int requestCode = engine.beginRequest(Arrays.asList(CONTACTS), "callback");
+        engine.resolve(requestCode);
+        engine.beginRequest(Arrays.asList(CAMERA), "newer");
+
+        // the store holds the newer request now, it is not the answer to this one
+        assertEquals(0, engine.resolve(requestCode).getPermissions().length);
+        PendingRequest<String> answered = engine.resolve(requestCode, new String[]{CONTACTS});
+        assertEquals(0, answered.getCallerCount());
+        assertArrayEquals(new String[]{CONTACTS}, answered.getPermissions());
+    }
+
+    @Test
+    public void concurrentRequestsAreCoalesced() {
+        Object activity = new Object();
+        String location = "android.permission.ACCESS_FINE_LOCATION";
+
+        PendingRequest<String> first = engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA)), "first");
+        assertArrayEquals(new String[]{CAMERA}, first.getPermissions());
+        // camera is in flight already, only the others wait for the next dialog
+        assertNull(engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA, CONTACTS)), "second"));
+        assertNull(engine.submit(activity, engine.plan(activity, Arrays.asList(location, CONTACTS)), "third"));
+        assertEquals(1, first.getCallerCount());
+
+        PendingRequest<String> pending = engine.resolve(first.getRequestCode());
+        engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        granted.add(CAMERA);
+
+        PendingRequest<String> next = engine.next(pending);
+        assertArrayEquals(new String[]{CONTACTS, location}, next.getPermissions());
+        assertEquals(2, next.getCallerCount());
+        assertNull(engine.next(pending));
+
+        pending = engine.resolve(next.getRequestCode());
+        PermissionStatus all = engine.verify(pending, pending.getPermissions(), new int[]{-1, PermissionChecker.GRANTED});
+        assertEquals(Arrays.asList(CAMERA, location), all.getGranted());
+
+        PermissionStatus second = engine.statusFor(pending, 0, all);
+        assertEquals(Arrays.asList(CAMERA), second.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), second.getDenied());
+        PermissionStatus third = engine.statusFor(pending, 1, all);
+        assertEquals(Arrays.asList(location), third.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), third.getDenied());
+        assertNull(engine.next(pending));
+    }
+
+    @Test
+    public void singleWaitingCallerGetsJoinedPermissions() {
+        Object activity = new Object();
+        PendingRequest<String> first = engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA)), "first");
+        assertNull(engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA, CONTACTS)), "second"));
+
+        PendingRequest<String> pending = engine.resolve(first.getRequestCode());
+        engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        granted.add(CAMERA);
+        PendingRequest<String> next = engine.next(pending);
+        assertArrayEquals(new String[]{CONTACTS}, next.getPermissions());
+        assertEquals(1, next.getCallerCount());
+
+        // camera was answered by the request before, the caller still gets it
+        pending = engine.resolve(next.getRequestCode());
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), new int[]{-1});
+        assertEquals(Arrays.asList(CAMERA), status.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), status.getDenied());
+        assertSame(status, engine.statusFor(pending, 0, status));
+
+        status = engine.verify(pending);
+        assertEquals(Arrays.asList(CAMERA), status.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), status.getDenied());
+    }
+
+    @Test
+    public void requestsAreHandedOverToRecreatedOwner() {
+        Object activity = new Object();
+        Object holder = new Object();
+        Object recreated = new Object();
+        PendingRequest<String> first = engine.submit(activity, engine.plan(activity, Arrays.asList(CAMERA)), "activity");
+        assertNull(engine.submit(activity, engine.plan(activity, Arrays.asList(CONTACTS)), "other"));
+        assertNull(engine.submit(activity, engine.plan(activity, Arrays.asList(CUSTOM)), "activity"));
+        assertTrue(engine.hasRequests(activity));
+
+        assertTrue(engine.handOver(activity, holder, "activity", "holder"));
+        assertFalse(engine.hasRequests(activity));
+        assertEquals("holder", first.getCallback(0));
+        assertTrue(engine.handOver(holder, recreated, "holder", "recreated"));
+        assertFalse(engine.handOver(holder, recreated, "holder", "recreated"));
+
+        PendingRequest<String> pending = engine.resolve(first.getRequestCode());
+        assertEquals("recreated", pending.getCallback(0));
+        engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        PendingRequest<String> next = engine.next(pending);
+        assertArrayEquals(new String[]{CONTACTS, CUSTOM}, next.getPermissions());
+        assertEquals(Arrays.asList("other", "recreated"), Arrays.asList(next.getCallback(0), next.getCallback(1)));
+        assertTrue(engine.hasRequests(recreated));
+    }
+
+    @Test
+    public void featuresAreEvaluatedWithOneCheckPerPermission() {
+        String audio = "android.permission.RECORD_AUDIO";
+        String fine = "android.permission.ACCESS_FINE_LOCATION";
+        String coarse = "android.permission.ACCESS_COARSE_LOCATION";
+        FeatureIndex index = new FeatureIndex.Builder()
+                .add("photo", CAMERA)
+                .add("video", CAMERA, audio)
+                .add("share", CONTACTS, CAMERA)
+                .add("custom", CUSTOM)
+                .add("navigation", fine, coarse)
+                .build();
+        granted.add(CAMERA);
+        granted.add(CONTACTS);
+        granted.add(fine);
+        asked.put(audio, true);
+        asked.put(coarse, true);
+
+        FeatureStates states = engine.evaluate(index);
+        assertEquals(6, checks);
+        assertTrue(states.isAvailable(index.idOf("photo")));
+        assertTrue(states.isAvailable(index.idOf("share")));
+        assertTrue(states.isBlocked(index.idOf("video")));
+        // not asked yet
+        assertFalse(states.isAvailable(index.idOf("custom")) || states.isBlocked(index.idOf("custom")));
+        // coarse is granted without a prompt along with fine
+        assertFalse(states.isAvailable(index.idOf("navigation")) || states.isBlocked(index.idOf("navigation")));
+
+        engine.evaluate(index);
+        assertEquals(6, checks);
+        assertEquals(-1, index.idOf("missing"));
+    }
+
+    @Test
+    public void askPolicyDecidesFromHistory() {
+        engine.setAskPolicy(new AskPolicy.Builder().maxAsks(3).rationaleBeforeRetry(true).build());
+        assertEquals(AskPolicy.ASK, engine.decide(CAMERA));
+
+        int code = engine.beginRequest(Arrays.asList(CAMERA), "cb");
+        engine.verify(engine.resolve(code));
+        assertEquals(1, engine.history().askCount(CAMERA));
+        assertTrue(engine.history().lastDeniedMillis(CAMERA) > 0);
+        assertEquals(AskPolicy.ASK_WITH_RATIONALE, engine.decide(CAMERA));
+        // unlike without a policy, it may be asked for again
+        assertTrue(engine.shouldWeAsk(CAMERA));
+        // but not before the rationale
+        RequestPlan plan = engine.plan(Arrays.asList(CAMERA));
+        assertFalse(plan.needsRequest());
+        assertEquals(Arrays.asList(CAMERA), plan.getNeedsRationale());
+        assertTrue(plan.toStatus().isDenied(CAMERA));
+        engine.markRationaleShown(CAMERA);
+        assertEquals(AskPolicy.ASK, engine.decide(CAMERA));
+
+        engine.beginRequest(engine.plan(Arrays.asList(CAMERA)), "cb");
+        assertEquals(AskPolicy.ASK_WITH_RATIONALE, engine.decide(CAMERA));
+        engine.markAsAsked(Arrays.asList(CAMERA));
+        assertEquals(AskPolicy.NEVER, engine.decide(CAMERA));
+        assertFalse(engine.shouldWeAsk(CAMERA));
+
+        commits = 0;
+        engine.clearMarkAsAsked(Arrays.asList(CAMERA, CONTACTS));
+        assertEquals(1, commits);
+        assertEquals(AskPolicy.ASK, engine.decide(CAMERA));
+
+        // marked by an older version, without history
+        asked.put(CUSTOM, true);
+        assertEquals(AskPolicy.ASK_WITH_RATIONALE, engine.decide(CUSTOM));
+        engine.setAskPolicy(null);
+        assertEquals(AskPolicy.NEVER, engine.decide(CUSTOM));
+    }
+
+    @Test
+    public void askPolicyBacksOffAfterDenial() {
+        AskPolicy policy = new AskPolicy.Builder().maxAsks(5).backoffMillis(60000).build();
+        engine.setAskPolicy(policy);
+        int code = engine.beginRequest(Arrays.asList(CAMERA), "cb");
+        engine.verify(engine.resolve(code), new String[]{CAMERA}, new int[]{-1});
+        assertEquals(AskPolicy.WAIT, engine.decide(CAMERA));
+
+        long denied = engine.history().lastDeniedMillis(CAMERA);
+        assertEquals(AskPolicy.ASK, policy.decide(engine.history(), CAMERA, denied + 60000));
+        engine.beginRequest(Arrays.asList(CAMERA), "cb");
+        // doubled
+        assertEquals(AskPolicy.WAIT, policy.decide(engine.history(), CAMERA, denied + 60000));
+        assertEquals(AskPolicy.ASK, policy.decide(engine.history(), CAMERA, denied + 120000));
+
+        // saturated, not overflowing to a negative wait
+        AskPolicy endless = new AskPolicy.Builder().maxAsks(30).backoffMillis(Long.MAX_VALUE / 4).build();
+        assertEquals(AskPolicy.WAIT, endless.decide(4, 1000, 1000, false, Long.MAX_VALUE / 2));
+        assertEquals(AskPolicy.WAIT, endless.decide(25, 1000, 1000, false, Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void silentGroupMatesAreNotCountedAsAsked() {
+        String fine = "android.permission.ACCESS_FINE_LOCATION";
+        String coarse = "android.permission.ACCESS_COARSE_LOCATION";
+        granted.add(fine);
+        engine.setAskPolicy(new AskPolicy.Builder().maxAsks(2).build());
+        Object activity = new Object();
+
+        PendingRequest<String> pending = engine.submit(activity, engine.plan(activity, Arrays.asList(fine, coarse, CAMERA)), "cb");
+        assertArrayEquals(new String[]{CAMERA, coarse}, pending.getPermissions());
+        assertEquals(1, engine.history().askCount(CAMERA));
+        assertEquals(0, engine.history().askCount(coarse));
+
+        engine.beginRequest(engine.plan(Arrays.asList(fine, coarse)), "cb");
+        assertEquals(0, engine.history().askCount(coarse));
+    }
+
+    @Test
+    public void metricsCountPhasesAndOutcomes() {
+        engine.plan(Arrays.asList(CAMERA, CUSTOM));
+        int requestCode = engine.beginRequest(Arrays.asList(CAMERA, CUSTOM), "callback");
+        PendingRequest<String> pending = engine.resolve(requestCode);
+        engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED, -1});
+
+        PermissionMetrics.Snapshot snapshot = engine.metrics().snapshot();
+        assertEquals(1, snapshot.count(PermissionMetrics.PHASE_PRE_CHECK));
+        assertEquals(1, snapshot.count(PermissionMetrics.PHASE_PERSIST));
+        assertEquals(1, snapshot.count(PermissionMetrics.PHASE_DIALOG));
+        assertEquals(1, snapshot.count(PermissionMetrics.PHASE_VERIFY));
+        assertEquals(1, snapshot.granted(PermissionRegistry.indexOf(CAMERA)));
+        assertEquals(1, snapshot.denied(PermissionRegistry.count()));
+        assertTrue(snapshot.percentileNanos(PermissionMetrics.PHASE_VERIFY, 50) > 0);
+    }
+
+    @Test
+    public void statusesAreSharedSnapshots() {
+        granted.add(CAMERA);
+        granted.add(CONTACTS);
+        List<String> wanted = Arrays.asList(CAMERA, CONTACTS);
+
+        PermissionStatus status = engine.check(wanted);
+        assertSame(status, engine.check(wanted));
+        assertSame(status.getGranted(), status.getGranted());
+
+        PermissionStatus changed = status.withDenied(CONTACTS).withDenied(CUSTOM);
+        assertEquals(Arrays.asList(CAMERA, CONTACTS), status.getGranted());
+        assertEquals(Arrays.asList(CONTACTS, CUSTOM), changed.getDenied());
+        assertSame(changed, changed.withDenied(CUSTOM));
+        assertSame(status, changed.without(CUSTOM).withGranted(CONTACTS));
+    }
+
+    @Test
+    public void resultsAreMergedWithoutBuilder() {
+        PermissionStatus status = engine.verify(null, new String[]{CAMERA, CONTACTS},
+                new int[]{PermissionChecker.GRANTED, PermissionChecker.GRANTED});
+        granted.add(CAMERA);
+        granted.add(CONTACTS);
+        // interned like any other status of the same masks
+        assertSame(status, engine.check(Arrays.asList(CAMERA, CONTACTS)));
+
+        status = engine.verify(null, new String[]{CAMERA, CUSTOM}, new int[]{PermissionChecker.GRANTED, -1});
+        assertEquals(Arrays.asList(CAMERA), status.getGranted());
+        assertEquals(Arrays.asList(CUSTOM), status.getDenied());
+    }
+
+    @Test
+    public void refreshPublishesOnlyChanges() throws Exception {
+        granted.add(CAMERA);
+        engine.check(Arrays.asList(CAMERA, CONTACTS, CUSTOM));
+        assertNull(engine.refresh());
+
+        final ArrayList<PermissionStatus> published = new ArrayList<>();
+        engine.subscribe(new PermissionListener() {
+            @Override
+            public void onPermissionsChanged(PermissionStatus changes) {
+                published.add(changes);
+            }
+        });
+        engine.check(Arrays.asList(CAMERA, CONTACTS, CUSTOM));
+        granted.remove(CAMERA);
+        granted.add(CUSTOM);
+
+        engine.publish(engine.refresh().call());
+        assertEquals(1, published.size());
+        assertEquals(Arrays.asList(CUSTOM), published.get(0).getGranted());
+        assertEquals(Arrays.asList(CAMERA), published.get(0).getDenied());
+
+        // nothing changed since
+        engine.publish(engine.refresh().call());
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void refreshSeesChangesOutsideOfVerifiedRequest() throws Exception {
+        final ArrayList<PermissionStatus> published = new ArrayList<>();
+        engine.subscribe(new PermissionListener() {
+            @Override
+            public void onPermissionsChanged(PermissionStatus changes) {
+                published.add(changes);
+            }
+        });
+        granted.add(CAMERA);
+        assertTrue(engine.hasPermission(CAMERA));
+
+        PendingRequest<String> pending = engine.resolve(engine.beginRequest(Arrays.asList(CONTACTS), "callback"));
+        engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        granted.add(CONTACTS);
+        granted.remove(CAMERA);
+
+        engine.publish(engine.refresh().call());
+        assertEquals(1, published.size());
+        assertEquals(Arrays.asList(CAMERA), published.get(0).getDenied());
+        assertFalse(published.get(0).hasGranted());
+
+        // the same by checking the states after the dialog
+        granted.add(CAMERA);
+        engine.invalidate();
+        assertTrue(engine.hasPermission(CAMERA));
+        pending = engine.resolve(engine.beginRequest(Arrays.asList(CONTACTS), "callback"));
+        engine.verify(pending);
+        granted.remove(CAMERA);
+
+        engine.publish(engine.refresh().call());
+        assertEquals(2, published.size());
+        assertEquals(Arrays.asList(CAMERA), published.get(1).getDenied());
+    }
+
+    @Test
+    public void guardReadsCachedStates() {
+        granted.add(CAMERA);
+        granted.add(CUSTOM);
+        PermissionGuard guard = engine.guard(PermissionSet.of(CAMERA, CUSTOM));
+
+        assertTrue(guard.allGranted());
+        assertEquals(2, checks);
+        assertTrue(guard.allGranted());
+        assertEquals(2, checks);
+
+        granted.remove(CAMERA);
+        engine.invalidate();
+        assertTrue(!guard.allGranted());
+        assertEquals(3, checks);
+        assertTrue(!guard.allGranted());
+        assertEquals(3, checks);
+    }
+
+    @Test
+    public void undeclaredPermissionsAreRejectedWithoutCheck() {
+        ManifestIndex manifest = new ManifestIndex(new String[]{CAMERA, CUSTOM});
+        engine.setManifest(manifest);
+
+        RequestPlan plan = engine.plan(Arrays.asList(CAMERA, CONTACTS, CUSTOM, "com.example.permission.OTHER"));
+        assertEquals(Arrays.asList(CONTACTS, "com.example.permission.OTHER"), plan.getUndeclared());
+        assertEquals(Arrays.asList(CAMERA, CUSTOM), plan.getToRequest());
+        assertEquals(2, checks);
+        assertTrue(plan.toStatus().isDenied(CONTACTS));
+
+        assertTrue(manifest.diagnose(plan.getUndeclared()) != null);
+        assertNull(manifest.diagnose(plan.getUndeclared()));
+        // reported per permission, not per list
+        assertNull(manifest.diagnose(Arrays.asList(CONTACTS)));
+        assertTrue(manifest.diagnose(Arrays.asList(CONTACTS, "android.permission.SEND_SMS")) != null);
+
+        PermissionStatus installed = engine.installTimeStatus(PermissionSet.of(CAMERA, CONTACTS));
+        assertEquals(Arrays.asList(CAMERA), installed.getGranted());
+        assertEquals(Arrays.asList(CONTACTS), installed.getDenied());
+        assertSame(engine.installTimeStatus(PermissionSet.of(CAMERA)), engine.installTimeStatus(PermissionSet.of(CAMERA)));
+        assertEquals(2, checks);
+
+        // prewarm checks only what can be requested
+        engine.prewarm(manifest.declaredRuntime(23));
+        assertEquals(2, checks);
+    }
+
+    @Test
+    public void undeclaredPermissionsAreDeniedInResults() {
+        String audio = "android.permission.RECORD_AUDIO";
+        String sms = "android.permission.SEND_SMS";
+        engine.setManifest(new ManifestIndex(new String[]{audio, CUSTOM}));
+        Object activity = new Object();
+
+        PendingRequest<String> pending = engine.submit(activity, engine.plan(activity, Arrays.asList(audio, sms)), "audio");
+        assertArrayEquals(new String[]{audio}, pending.getPermissions());
+        pending = engine.resolve(pending.getRequestCode());
+        PermissionStatus status = engine.verify(pending, pending.getPermissions(), new int[]{-1});
+        assertEquals(Arrays.asList(audio, sms), status.getDenied());
+        assertEquals(Arrays.asList(audio, sms), engine.verify(pending).getDenied());
+        engine.next(pending);
+
+        // outside the registry the results go through the builder
+        pending = engine.submit(activity, engine.plan(activity, Arrays.asList(CUSTOM, sms)), "custom");
+        pending = engine.resolve(pending.getRequestCode());
+        status = engine.verify(pending, pending.getPermissions(), new int[]{PermissionChecker.GRANTED});
+        assertEquals(Arrays.asList(CUSTOM), status.getGranted());
+        assertEquals(Arrays.asList(sms), status.getDenied());
+    }
+
+    @Test
+    public void journalKeepsLastDecisions() throws IOException {
+        PermissionJournal journal = new PermissionJournal(3);
+        engine.setJournal(journal);
+        granted.add(CONTACTS);
+
+        RequestPlan plan = engine.plan(Arrays.asList(CAMERA, CONTACTS));
+        int code = engine.beginRequest(plan, "cb");
+        granted.add(CAMERA);
+        engine.verify(engine.resolve(code));
+        // granted contacts, camera to request, asked and granted
+        assertEquals(4, journal.recorded());
+        assertEquals(4, journal.capacity());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(4, journal.writeTo(out));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        in.skipBytes(4 * 3 + 8 * 2);
+        assertEquals(4, in.readInt());
+        int[][] expected = {
+                {PermissionJournal.NO_REQUEST, PermissionJournal.DECISION_GRANTED, PermissionRegistry.indexOf(CONTACTS)},
+                {PermissionJournal.NO_REQUEST, PermissionJournal.DECISION_TO_REQUEST, PermissionRegistry.indexOf(CAMERA)},
+                {code, PermissionJournal.DECISION_MARKED_ASKED, PermissionRegistry.indexOf(CAMERA)},
+                {code, PermissionJournal.DECISION_ANSWER_GRANTED, PermissionRegistry.indexOf(CAMERA)},
+        };
+        long previous = Long.MIN_VALUE;
+        for (int[] event : expected) {
+            long time = in.readLong();
+            assertTrue(time >= previous);
+            previous = time;
+            assertArrayEquals(event, new int[]{in.readUnsignedShort(), in.readUnsignedByte(), in.readUnsignedByte()});
+        }
+
+        // the oldest is overwritten
+        engine.clearMarkAsAsked(CAMERA);
+        assertEquals(4, journal.writeTo(new ByteArrayOutputStream()));
+        assertEquals(5, journal.recorded());
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.lukassos.runtime_permission.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedFileStateStoreTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private final ArrayList<SharedFileStateStore> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "shared");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SharedFileStateStore store : opened) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void writesOfOneMappingAreSeenByAnother() throws IOException {
+        // two mappings of the same file stand for two processes
+        SharedFileStateStore first = open();
+        SharedFileStateStore second = open();
+        assertFalse(second.isAsked(CAMERA));
+        long version = second.version();
+
+        first.edit()
+                .markAsAsked(CAMERA)
+                .markAsAsked(CUSTOM)
+                .setRequested(Arrays.asList(CUSTOM, CAMERA))
+                .commit();
+        second.edit().markAsAsked(CONTACTS).commit();
+
+        assertNotEquals(version, second.version());
+        assertTrue(second.isAsked(CAMERA));
+        assertTrue(second.isAsked(CUSTOM));
+        assertTrue(first.isAsked(CONTACTS));
+        assertEquals(Arrays.asList(CAMERA, CUSTOM), second.loadRequested());
+
+        first.edit().clearMarkAsAsked(CUSTOM).commit();
+        assertFalse(second.isAsked(CUSTOM));
+        assertTrue(open().isAsked(CONTACTS));
+    }
+
+    @Test
+    public void engineSeesMarkersOfAnotherProcess() throws IOException {
+        SharedFileStateStore other = open();
+        PermissionEngine<Object> engine = new PermissionEngine<>(new PermissionChecker() {
+            @Override
+            public boolean isGranted(String permission) {
+                return false;
+            }
+        }, open());
+        assertTrue(engine.shouldWeAsk(CAMERA));
+
+        other.edit().markAsAsked(CAMERA).commit();
+        assertFalse(engine.shouldWeAsk(CAMERA));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void askPolicyNeedsSharedHistory() throws IOException {
+        PermissionEngine<Object> engine = new PermissionEngine<>(new PermissionChecker() {
+            @Override
+            public boolean isGranted(String permission) {
+                return false;
+            }
+        }, open());
+        engine.setAskPolicy(new AskPolicy.Builder().build());
+    }
+
+    @Test
+    public void closedStoreCannotBeUsed() throws IOException {
+        SharedFileStateStore store = open();
+        store.edit().markAsAsked(CAMERA).commit();
+        store.close();
+        try {
+            store.isAsked(CAMERA);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(open().isAsked(CAMERA));
+    }
+
+    private SharedFileStateStore open() throws IOException {
+        SharedFileStateStore store = new SharedFileStateStore(file);
+        opened.add(store);
+        return store;
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.lukassos.runtime_permission.processor;
+
+import com.example.lukassos.runtime_permission.core.NeedsPermissions;
+import com.example.lukassos.runtime_permission.core.PermissionRegistry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates permission tables of classes with {@link NeedsPermissions} members, see its documentation.
+ * <p>
+ * Masks are computed here with the {@link PermissionRegistry} of the core module the app is built with,
+ * the generated code checks at runtime that the registry layout is still the same.
+ */
+public class PermissionsProcessor extends AbstractProcessor {
+    private static final String SUFFIX = "Permissions";
+    private static final String SET = "PermissionSet";
+    private static final String SET_IMPORT = "com.example.lukassos.runtime_permission.core.PermissionSet";
+    private static final String NEEDS_IMPORT = "com.example.lukassos.runtime_permission.core.NeedsPermissions";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(NeedsPermissions.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        LinkedHashMap<TypeElement, List<Feature>> byType = new LinkedHashMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(NeedsPermissions.class)) {
+            Feature feature = feature(element);
+            if (feature == null)
+                continue;
+            TypeElement type = (TypeElement) element.getEnclosingElement();
+            List<Feature> features = byType.get(type);
+            if (features == null) {
+                features = new ArrayList<>();
+                byType.put(type, features);
+            }
+            features.add(feature);
+        }
+        for (Map.Entry<TypeElement, List<Feature>> entry : byType.entrySet()) {
+            if (check(entry.getValue()))
+                generate(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * @return feature of element, null when it is not valid
+     */
+    private Feature feature(Element element) {
+        NeedsPermissions annotation = element.getAnnotation(NeedsPermissions.class);
+        int code;
+        boolean method = element.getKind() == ElementKind.METHOD;
+        if (method) {
+            ExecutableElement executable = (ExecutableElement) element;
+            if (annotation.code() == NeedsPermissions.NO_CODE)
+                return error(element, "@NeedsPermissions on a method needs code");
+            if (!executable.getParameters().isEmpty())
+                return error(element, "@NeedsPermissions method must not have parameters");
+            if (element.getModifiers().contains(Modifier.PRIVATE))
+                return error(element, "@NeedsPermissions method must not be private");
+            code = annotation.code();
+        } else {
+            Object value = ((VariableElement) element).getConstantValue();
+            if (!(value instanceof Integer) || !element.getModifiers().contains(Modifier.STATIC))
+                return error(element, "@NeedsPermissions field must be a static final int constant");
+            if (annotation.code() != NeedsPermissions.NO_CODE)
+                return error(element, "@NeedsPermissions field is the code itself, remove code");
+            code = (Integer) value;
+        }
+        if (annotation.value().length == 0)
+            return error(element, "@NeedsPermissions needs some permission");
+
+        Feature feature = new Feature(element, code, method);
+        LinkedHashSet<String> others = new LinkedHashSet<>();
+        for (String perm : annotation.value()) {
+            int index = PermissionRegistry.indexOf(perm);
+            if (index == PermissionRegistry.UNKNOWN) {
+                others.add(perm);
+            } else {
+                feature.mask |= 1L << index;
+            }
+        }
+        feature.others.addAll(others);
+        return feature;
+    }
+
+    /**
+     * @return false when codes or names of features conflict
+     */
+    private boolean check(List<Feature> features) {
+        boolean valid = true;
+        HashMap<Integer, Feature> fields = new HashMap<>();
+        HashMap<Integer, Feature> methods = new HashMap<>();
+        HashMap<String, Feature> names = new HashMap<>();
+        for (Feature feature : features) {
+            HashMap<Integer, Feature> sameKind = feature.method ? methods : fields;
+            Feature other = sameKind.put(feature.code, feature);
+            if (other != null) {
+                error(feature.element, "code " + feature.code + " is used by " + other.element.getSimpleName() + " too");
+                valid = false;
+            }
+            // constant and method of the same code belong together
+            other = (feature.method ? fields : methods).get(feature.code);
+            if (other != null && !feature.sameSetAs(other)) {
+                error(feature.element, "code " + feature.code + " needs other permissions at " + other.element.getSimpleName());
+                valid = false;
+            }
+            other = names.put(feature.constantName(), feature);
+            if (other != null) {
+                error(feature.element, "name " + feature.constantName() + " is used by " + other.element.getSimpleName() + " too");
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private void generate(TypeElement type, List<Feature> features) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = pkg.getQualifiedName().toString();
+        String className = flatName(type, pkg) + SUFFIX;
+        String target = type.getQualifiedName().toString();
+
+        StringBuilder out = new StringBuilder();
+        if (!packageName.isEmpty())
+            out.append("package ").append(packageName).append(";\n\n");
+        out.append("import ").append(NEEDS_IMPORT).append(";\n");
+        out.append("import ").append(SET_IMPORT).append(";\n\n");
+        out.append("/**\n * Permission tables of {@link ").append(target)
+                .append("}, generated by ").append(getClass().getSimpleName()).append(" - do not edit\n */\n");
+        out.append("public final class ").append(className).append(" {\n");
+        for (Feature feature : features) {
+            out.append("    public static final ").append(SET).append(' ').append(feature.constantName())
+                    .append(" = ").append(SET).append(".compiled(").append(PermissionRegistry.layoutHash())
+                    .append(", 0x").append(Long.toHexString(feature.mask)).append('L');
+            for (String other : feature.others) {
+                out.append(", ").append(processingEnv.getElementUtils().getConstantExpression(other));
+            }
+            out.append(");\n");
+        }
+        out.append("\n    private ").append(className).append("() {\n    }\n\n");
+
+        out.append("    /**\n     * @param code\n     * @return set of the feature with code, null when there is none\n     */\n");
+        out.append("    public static ").append(SET).append(" set(int code) {\n        switch (code) {\n");
+        for (Feature feature : features) {
+            if (feature.method && hasField(features, feature.code))
+                continue;
+            out.append("            case ").append(feature.code).append(": // ").append(feature.element.getSimpleName())
+                    .append("\n                return ").append(feature.constantName()).append(";\n");
+        }
+        out.append("            default:\n                return null;\n        }\n    }\n");
+
+        out.append("\n    /**\n     * @param set\n     * @return code of the feature of set, NeedsPermissions.NO_CODE when set is not one of these\n     */\n");
+        out.append("    public static int codeOf(").append(SET).append(" set) {\n");
+        for (Feature feature : features) {
+            if (feature.method && hasField(features, feature.code))
+                continue;
+            out.append("        if (set == ").append(feature.constantName()).append(")\n            return ")
+                    .append(feature.code).append(";\n");
+        }
+        out.append("        return NeedsPermissions.NO_CODE;\n    }\n");
+
+        boolean hasMethods = false;
+        for (Feature feature : features) {
+            hasMethods |= feature.method;
+        }
+        if (hasMethods) {
+            out.append("\n    /**\n     * Calls the method of the feature with code\n     *\n     * @param target\n")
+                    .append("     * @param code\n     * @return false when there is no such feature\n     */\n");
+            out.append("    public static boolean dispatch(").append(target).append(" target, int code) {\n")
+                    .append("        switch (code) {\n");
+            for (Feature feature : features) {
+                if (!feature.method)
+                    continue;
+                out.append("            case ").append(feature.code).append(":\n                ")
+                        .append(feature.element.getModifiers().contains(Modifier.STATIC) ? target : "target")
+                        .append('.').append(feature.element.getSimpleName()).append("();\n                return true;\n");
+            }
+            out.append("            default:\n                return false;\n        }\n    }\n");
+        }
+        out.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(out.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write " + qualifiedName + ": " + e.getMessage(), type);
+        }
+    }
+
+    private static boolean hasField(List<Feature> features, int code) {
+        for (Feature feature : features) {
+            if (!feature.method && feature.code == code)
+                return true;
+        }
+        return false;
+    }
+
+    private static String flatName(TypeElement type, PackageElement pkg) {
+        String name = type.getQualifiedName().toString();
+        if (!pkg.isUnnamed())
+            name = name.substring(pkg.getQualifiedName().length() + 1);
+        return name.replace('.', '_');
+    }
+
+    private Feature error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return null;
+    }
+
+    /**
+     * Annotated member
+     */
+    private static final class Feature {
+        final Element element;
+        final int code;
+        final boolean method;
+        long mask;
+        final ArrayList<String> others = new ArrayList<>();
+
+        Feature(Element element, int code, boolean method) {
+            this.element = element;
+            this.code = code;
+            this.method = method;
+        }
+
+        boolean sameSetAs(Feature other) {
+            return mask == other.mask && new LinkedHashSet<>(others).equals(new LinkedHashSet<>(other.others));
+        }
+
+        /**
+         * @return name of the set constant, upper snake case of the member name
+         */
+        String constantName() {
+            String name = element.getSimpleName().toString();
+            if (name.equals(name.toUpperCase()))
+                return name;
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (Character.isUpperCase(c) && i > 0)
+                    result.append('_');
+                result.append(Character.toUpperCase(c));
+            }
+            return result.toString();
+        }
+    }
+}
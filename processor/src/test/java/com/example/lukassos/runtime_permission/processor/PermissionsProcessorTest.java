@@ -0,0 +1,132 @@
+package com.example.lukassos.runtime_permission.processor;
+
+import com.example.lukassos.runtime_permission.core.NeedsPermissions;
+import com.example.lukassos.runtime_permission.core.PermissionSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the processor in the system compiler over small sources, the way the app module does
+ */
+public class PermissionsProcessorTest {
+    private static final String HEADER = "package test;\n"
+            + "import com.example.lukassos.runtime_permission.core.NeedsPermissions;\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void generatesTablesOfValidFeatures() throws Exception {
+        List<String> errors = compile(HEADER + "public class Screen {\n"
+                + "    @NeedsPermissions({\"android.permission.CAMERA\", \"com.example.permission.CUSTOM\"})\n"
+                + "    public static final int PHOTO = 7;\n"
+                + "    @NeedsPermissions(value = {\"android.permission.CAMERA\", \"com.example.permission.CUSTOM\"}, code = 7)\n"
+                + "    void takePhoto() {\n"
+                + "        taken++;\n"
+                + "    }\n"
+                + "    public int taken;\n"
+                + "}\n");
+        assertEquals(Collections.<String>emptyList(), errors);
+
+        URLClassLoader loader = new URLClassLoader(new URL[]{folder.getRoot().toURI().toURL()},
+                getClass().getClassLoader());
+        Class<?> tables = loader.loadClass("test.ScreenPermissions");
+        PermissionSet set = (PermissionSet) tables.getMethod("set", int.class).invoke(null, 7);
+        assertEquals(Arrays.asList("android.permission.CAMERA", "com.example.permission.CUSTOM"), set.toList());
+        assertNull(tables.getMethod("set", int.class).invoke(null, 8));
+        assertEquals(7, tables.getMethod("codeOf", PermissionSet.class).invoke(null, set));
+        assertEquals(NeedsPermissions.NO_CODE, tables.getMethod("codeOf", PermissionSet.class)
+                .invoke(null, PermissionSet.of("android.permission.CAMERA")));
+
+        Class<?> screen = loader.loadClass("test.Screen");
+        Object target = screen.getConstructor().newInstance();
+        assertEquals(true, tables.getMethod("dispatch", screen, int.class).invoke(null, target, 7));
+        assertEquals(1, screen.getField("taken").getInt(target));
+    }
+
+    @Test
+    public void rejectsMethodWithParameters() {
+        List<String> errors = compile(HEADER + "public class Screen {\n"
+                + "    @NeedsPermissions(value = \"android.permission.CAMERA\", code = 1)\n"
+                + "    void photo(int size) {\n"
+                + "    }\n"
+                + "}\n");
+        assertEquals(Arrays.asList("@NeedsPermissions method must not have parameters"), errors);
+    }
+
+    @Test
+    public void rejectsCodesWhichAreNotStaticConstants() {
+        List<String> errors = compile(HEADER + "public class Screen {\n"
+                + "    @NeedsPermissions(\"android.permission.CAMERA\")\n"
+                + "    static int photo = 1;\n"
+                + "    @NeedsPermissions(\"android.permission.CAMERA\")\n"
+                + "    final int video = 2;\n"
+                + "}\n");
+        assertEquals(Arrays.asList("@NeedsPermissions field must be a static final int constant",
+                "@NeedsPermissions field must be a static final int constant"), errors);
+    }
+
+    @Test
+    public void rejectsDuplicateCodes() {
+        List<String> errors = compile(HEADER + "public class Screen {\n"
+                + "    @NeedsPermissions(\"android.permission.CAMERA\")\n"
+                + "    static final int PHOTO = 1;\n"
+                + "    @NeedsPermissions(\"android.permission.RECORD_AUDIO\")\n"
+                + "    static final int AUDIO = 1;\n"
+                + "}\n");
+        assertEquals(Arrays.asList("code 1 is used by PHOTO too"), errors);
+        assertFalse(new File(folder.getRoot(), "test/ScreenPermissions.java").exists());
+    }
+
+    /**
+     * @return error messages, in source order
+     */
+    private List<String> compile(final String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, Locale.ROOT, null);
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///test/Screen.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        String out = folder.getRoot().getPath();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                Arrays.asList("-d", out, "-s", out, "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new PermissionsProcessor()));
+        task.call();
+
+        ArrayList<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                errors.add(diagnostic.getMessage(Locale.ROOT));
+        }
+        return errors;
+    }
+}